@@ -15,6 +15,7 @@
  */
 package info.yangguo.yfs.common;
 
+import info.yangguo.yfs.common.po.ErasureCode;
 import info.yangguo.yfs.common.po.FileEvent;
 import info.yangguo.yfs.common.po.StoreInfo;
 import io.atomix.utils.serializer.Namespace;
@@ -26,6 +27,30 @@ public class CommonConstant {
     public static final String fileMetadataMapName = "file-metadata";
     public static final String storeInfoMapName = "store-info";
     public static final String xHeaderPrefix = "x-yfs-";
+    /**
+     * raw body上传时用来传递原始文件名的header
+     */
+    public static final String xFileNameHeader = xHeaderPrefix + "filename";
+    /**
+     * 上传时指定是否压缩存储的header，优先于按照Content-Type的判断
+     */
+    public static final String xCompressHeader = xHeaderPrefix + "compress";
+    /**
+     * 上传时指定存储方式的header，ec表示纠删码，默认全副本
+     */
+    public static final String xStorageClassHeader = xHeaderPrefix + "storage-class";
+    /**
+     * 上传时指定写入持久性级别的header，可选async、local、majority、all
+     */
+    public static final String xDurabilityHeader = xHeaderPrefix + "durability";
+    /**
+     * 链式复制时下游的副本节点，逗号分隔
+     */
+    public static final String xChainHeader = xHeaderPrefix + "chain";
+    /**
+     * 链式复制时文件在磁盘上的编码
+     */
+    public static final String xChainCodecHeader = xHeaderPrefix + "chain-codec";
     public static final String gatewayZone = "gateway";
     public static final String storeZone = "store";
     public static final String memberHttpPortPro = "http-port";
@@ -33,6 +58,18 @@ public class CommonConstant {
      * crc32 checksum
      */
     public static final String CRC32 = "crc32";
+    /**
+     * sha256 checksum
+     */
+    public static final String SHA256 = "sha256";
+    /**
+     * md5 checksum(hex)
+     */
+    public static final String MD5 = "md5";
+    /**
+     * 文件在磁盘上的编码方式，没有压缩时不存在
+     */
+    public static final String CODEC = "codec";
 
     public static final Serializer protocolSerializer = Serializer.using(Namespace.builder()
             .register(ArrayList.class)
@@ -42,6 +79,7 @@ public class CommonConstant {
             .register(Map.class)
             .register(HashMap.class)
             .register(HashSet.class)
+            .register(ErasureCode.class)
             .build());
 
     /**
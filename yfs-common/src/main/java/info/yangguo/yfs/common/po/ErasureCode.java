@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.common.po;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 纠删码存储的文件描述。文件按照stripe切分，每个stripe包含dataShards个block，
+ * 第i个shard由所有stripe的第i个block依次拼接而成，再加上parityShards个校验shard。
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class ErasureCode implements Serializable {
+    private int dataShards;
+    private int parityShards;
+    /**
+     * 每个block的大小
+     */
+    private int blockSize;
+    /**
+     * 原始文件大小，最后一个stripe补零之后需要截断
+     */
+    private long size;
+    /**
+     * 第i个shard所在的节点
+     */
+    private List<String> nodes = new ArrayList<>();
+    /**
+     * 原始文件的元数据，读取时作为header返回
+     */
+    private Map<String, String> metas = new HashMap<>();
+}
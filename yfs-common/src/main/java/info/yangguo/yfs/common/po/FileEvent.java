@@ -34,4 +34,20 @@ public class FileEvent implements Serializable {
      * 文件已移除的node
      */
     private List<String> removeNodes = new ArrayList<>();
+    /**
+     * 需要保存副本的节点，为空表示group中的所有节点
+     */
+    private List<String> targetNodes = new ArrayList<>();
+    /**
+     * 文件大小，同步时用来决定优先级
+     */
+    private long size;
+    /**
+     * 内容和该文件相同，已经持有该文件的节点直接创建硬链接，不需要同步数据
+     */
+    private String linkPath;
+    /**
+     * 纠删码存储时不为null，节点只保存分配给自己的shard
+     */
+    private ErasureCode erasureCode;
 }
@@ -18,6 +18,9 @@ package info.yangguo.yfs.common.po;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @Getter
 @Setter
 public class StoreInfo {
@@ -30,6 +33,10 @@ public class StoreInfo {
     private long updateTime;
     private long metadataFreeSpaceKb;
     private long fileFreeSpaceKb;
+    /**
+     * 每块数据盘的剩余空间，fileFreeSpaceKb是所有数据盘之和
+     */
+    private Map<String, Long> diskFreeSpaceKb = new HashMap<>();
 
     private StoreInfo(){}
 
@@ -24,9 +24,13 @@ import org.littleshoot.proxy.HostResolver;
 
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 /**
@@ -85,6 +89,20 @@ public class HostResolverImpl implements HostResolver {
                     if (server == null) {
                         server = weightedRoundRobinScheduling.getServer();
                     }
+                } else {
+                    //部分副本，从持有副本的健康节点中随机选择
+                    List<String> nodeIds = Arrays.asList(hostParts).subList(1, hostParts.length);
+                    List<WeightedRoundRobinScheduling.Server> candidates = new ArrayList<>();
+                    for (WeightedRoundRobinScheduling.Server tmp : weightedRoundRobinScheduling.healthilyServers) {
+                        if (nodeIds.contains(tmp.getStoreInfo().getNodeId())) {
+                            candidates.add(tmp);
+                        }
+                    }
+                    if (candidates.size() > 0) {
+                        server = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+                    } else {
+                        server = weightedRoundRobinScheduling.getServer();
+                    }
                 }
             }
         }
@@ -17,16 +17,27 @@ package info.yangguo.yfs.request;
 
 import info.yangguo.yfs.common.utils.IdMaker;
 import info.yangguo.yfs.config.ClusterConfig;
+import info.yangguo.yfs.util.ResponseUtil;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Date;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class RewriteFilter implements RequestFilter {
+    private static final Pattern uploadSessionPattern = Pattern.compile("/api/upload/(\\d{10,})(\\.[\\w-]+)*(/.*)?(\\?.*)?");
+    private static final Pattern replicaPattern = Pattern.compile("r\\d+(-\\d+)*");
+    /**
+     * store之间使用的接口，不对外开放
+     */
+    private static final Pattern internalPattern = Pattern.compile("/api/(chain|shard)(/.*)?");
     private ClusterConfig clusterConfig;
 
     private RewriteFilter() {
@@ -38,7 +49,15 @@ public class RewriteFilter implements RequestFilter {
 
     public HttpResponse doFilter(HttpRequest originalRequest, HttpObject httpObject) {
         if (httpObject instanceof HttpRequest) {
-            if (HttpMethod.POST == originalRequest.method()) {
+            if (isInternal(((HttpRequest) httpObject).uri())) {
+                return ResponseUtil.createResponse(HttpResponseStatus.FORBIDDEN, originalRequest, null);
+            }
+            Matcher uploadMatcher = uploadSessionPattern.matcher(((HttpRequest) httpObject).uri());
+            if (uploadMatcher.matches()) {
+                //断点续传会话只存在于创建它的store上，会话id就是IdMaker生成的id
+                String[] idParts = IdMaker.INSTANCE.split(uploadMatcher.group(1));
+                ((HttpRequest) httpObject).setUri("http://" + idParts[0] + "-" + idParts[1] + ((HttpRequest) httpObject).uri());
+            } else if (HttpMethod.POST == originalRequest.method() || HttpMethod.PUT == originalRequest.method()) {
                 ((HttpRequest) httpObject).setUri("http://upload" + ((HttpRequest) httpObject).uri());
             } else {
                 String uri = ((HttpRequest) httpObject).uri();
@@ -50,14 +69,22 @@ public class RewriteFilter implements RequestFilter {
                         || uri.contains("webjars")) {
                     ((HttpRequest) httpObject).setUri("http://upload" + uri);
                 } else {
-                    Pattern pathPattern = Pattern.compile("/\\w{1,3}/\\w{1,3}/\\d{10,}(\\.\\w+)*+");
+                    Pattern pathPattern = Pattern.compile("/\\w{1,3}/\\w{1,3}/\\d{10,}(\\.[\\w-]+)*+");
                     Matcher matcher = pathPattern.matcher(uri);
                     if (matcher.matches()) {
                         String[] uriParts = uri.split("/");
-                        String id = uriParts[uriParts.length - 1].split("\\.")[0];
+                        String[] nameParts = uriParts[uriParts.length - 1].split("\\.");
+                        String id = nameParts[0];
                         String[] idParts = IdMaker.INSTANCE.split(id);
                         if (new Date().getTime() - new Date(Long.valueOf(idParts[3])).getTime() < clusterConfig.clusterProperties.getSticky() * 1000) {
                             ((HttpRequest) httpObject).setUri("http://" + idParts[0] + "-" + idParts[1] + uri);
+                        } else if (nameParts.length > 1 && replicaPattern.matcher(nameParts[1]).matches()) {
+                            //部分副本的文件只路由到保存了副本的节点
+                            StringBuilder host = new StringBuilder(idParts[0]);
+                            for (String nodeId : nameParts[1].substring(1).split("-")) {
+                                host.append("-").append(nodeId);
+                            }
+                            ((HttpRequest) httpObject).setUri("http://" + host + uri);
                         } else {
                             ((HttpRequest) httpObject).setUri("http://" + idParts[0] + uri);
                         }
@@ -69,4 +96,15 @@ public class RewriteFilter implements RequestFilter {
         }
         return null;
     }
+
+    private boolean isInternal(String uri) {
+        try {
+            //解码并规范化之后再匹配，避免通过编码、路径参数、重复的/或者..绕过
+            String path = new QueryStringDecoder(uri).path().replaceAll(";[^/]*", "").replaceAll("/+", "/");
+            path = new URI(null, null, path, null).normalize().getPath();
+            return internalPattern.matcher(path).matches();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return true;
+        }
+    }
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.request;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RewriteFilterTest {
+    private static final String ID = "0120101528188342000";
+
+    private String rewrite(HttpMethod method, String uri) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, uri);
+        Assert.assertNull(new RewriteFilter(null).doFilter(request, request));
+        return request.uri();
+    }
+
+    @Test
+    public void uploadSession() {
+        Assert.assertEquals("http://01-2/api/upload/" + ID, rewrite(HttpMethod.PUT, "/api/upload/" + ID));
+        Assert.assertEquals("http://01-2/api/upload/" + ID + "/1", rewrite(HttpMethod.PUT, "/api/upload/" + ID + "/1"));
+        Assert.assertEquals("http://01-2/api/upload/" + ID + "/commit?x=1", rewrite(HttpMethod.POST, "/api/upload/" + ID + "/commit?x=1"));
+    }
+
+    @Test
+    public void uploadSessionWithReplicaSegment() {
+        //会话持久化之后id中可能还带有副本段
+        Assert.assertEquals("http://01-2/api/upload/" + ID + ".r1-3-11", rewrite(HttpMethod.GET, "/api/upload/" + ID + ".r1-3-11"));
+        Assert.assertEquals("http://01-2/api/upload/" + ID + ".r1-3-11/2", rewrite(HttpMethod.PUT, "/api/upload/" + ID + ".r1-3-11/2"));
+    }
+
+    @Test
+    public void newUpload() {
+        Assert.assertEquals("http://upload/api/upload", rewrite(HttpMethod.POST, "/api/upload"));
+    }
+}
@@ -36,9 +36,20 @@ public class ClusterProperties {
     @Setter
     public static class Store {
         private int qos_max_time;
+        private int qos_min_time;
+        private String durability;
         private long max_upload_size;
+        private boolean streaming_upload;
+        private long upload_session_expire;
+        private int replicas;
         private Metadata metadata;
         private Filedata filedata;
+        private Volume volume;
+        private Io io;
+        private Compress compress;
+        private Ec ec;
+        private Tier tier;
+        private Replication replication;
         private List<ClusterNode> node;
         private Watchdog watchdog;
     }
@@ -58,6 +69,7 @@ public class ClusterProperties {
         private String ip;
         private int socket_port;
         private int http_port;
+        private int replication_port;
     }
 
     @Getter
@@ -71,6 +83,63 @@ public class ClusterProperties {
     public static class Filedata {
         private String dir;
         private int partition;
+        private boolean sha256;
+        private boolean dedup;
+        private boolean fsync;
+        private long fsync_interval;
+    }
+
+    @Getter
+    @Setter
+    public static class Volume {
+        private boolean enable;
+        private int small_file_size;
+        private long max_size;
+        private double compact_ratio;
+        private long compact_rate;
+    }
+
+    @Getter
+    @Setter
+    public static class Io {
+        private int concurrency;
+        private int max_waiters;
+    }
+
+    @Getter
+    @Setter
+    public static class Compress {
+        private boolean enable;
+        private String content_types;
+    }
+
+    @Getter
+    @Setter
+    public static class Ec {
+        private boolean enable;
+        private int data_shards;
+        private int parity_shards;
+        private long min_size;
+    }
+
+    @Getter
+    @Setter
+    public static class Tier {
+        private String hot_dir;
+        private int high_water;
+        private long cool_down;
+        private long migrate_rate;
+    }
+
+    @Getter
+    @Setter
+    public static class Replication {
+        private boolean chain;
+        private long chain_timeout;
+        private int threads;
+        private int max_pending;
+        private long small_size;
+        private int batch_size;
     }
 
     @Getter
@@ -20,10 +20,20 @@ import info.yangguo.yfs.common.po.FileEvent;
 import info.yangguo.yfs.common.po.StoreInfo;
 import info.yangguo.yfs.common.utils.JsonUtil;
 import info.yangguo.yfs.common.utils.PropertiesUtil;
+import info.yangguo.yfs.service.DedupService;
+import info.yangguo.yfs.service.Disk;
+import info.yangguo.yfs.service.DiskService;
+import info.yangguo.yfs.service.ErasureCodeService;
 import info.yangguo.yfs.service.FileAttributes;
 import info.yangguo.yfs.service.FileService;
+import info.yangguo.yfs.service.IoScheduler;
+import info.yangguo.yfs.service.ReplicaService;
+import info.yangguo.yfs.service.TierService;
+import info.yangguo.yfs.service.UploadService;
+import info.yangguo.yfs.service.VolumeService;
 import io.atomix.cluster.Member;
 import io.atomix.core.Atomix;
+import io.atomix.core.map.MapEvent;
 import io.atomix.utils.time.Versioned;
 import org.apache.commons.io.FileSystemUtils;
 import org.apache.commons.io.FileUtils;
@@ -63,14 +73,20 @@ public class Watchdog {
             String key = entry.getKey();
             FileEvent fileEvent = entry.getValue().value();
             long version = entry.getValue().version();
+            //部分副本及纠删码存储时只有副本节点需要持有
+            boolean holder = ReplicaService.isHolder(clusterProperties, fileEvent);
             if (fileEvent.getAddNodes().size() == 0) {
                 yfsConfig.fileEventMap.remove(key);
-            } else if ((fileEvent.getRemoveNodes().size() > 0 && !fileEvent.getRemoveNodes().contains(clusterProperties.getLocal()))
-                    || (fileEvent.getRemoveNodes().size() == 0 && !fileEvent.getAddNodes().contains(clusterProperties.getLocal()))) {
+            } else if (fileEvent.getRemoveNodes().size() > 0 && holder && !fileEvent.getRemoveNodes().contains(clusterProperties.getLocal())) {
                 logger.info("Resync {}\n{}", key, JsonUtil.toJson(fileEvent, true));
                 yfsConfig.fileEventMap.replace(key, version, fileEvent);
+            } else if (fileEvent.getRemoveNodes().size() == 0 && holder && !fileEvent.getAddNodes().contains(clusterProperties.getLocal())) {
+                //只有当前节点需要同步，直接在本地提交，不需要通过写元数据广播event
+                logger.info("Resync {}\n{}", key, JsonUtil.toJson(fileEvent, true));
+                yfsConfig.submitSync(clusterProperties, key, entry.getValue(), MapEvent.Type.UPDATE);
             } else {
-                if ((fileEvent.getRemoveNodes().size() == 0 && fileEvent.getAddNodes().contains(clusterProperties.getLocal())) && !FileService.checkExist(FileService.getFullPath(clusterProperties, key))) {
+                ErasureCodeService.trim(clusterProperties, key, fileEvent);
+                if ((fileEvent.getRemoveNodes().size() == 0 && fileEvent.getAddNodes().contains(clusterProperties.getLocal())) && !ErasureCodeService.exists(clusterProperties, key, fileEvent)) {
                     fileEvent.getAddNodes().remove(clusterProperties.getLocal());
                     logger.info("Resync {}\n{}", key, JsonUtil.toJson(fileEvent, true));
                     yfsConfig.fileEventMap.replace(key, version, fileEvent);
@@ -86,7 +102,13 @@ public class Watchdog {
     @Scheduled(initialDelayString = "${yfs.store.watchdog.initial_delay}", fixedDelayString = "${yfs.store.watchdog.repair_delay}")
     public void repairFile() {
         try {
-            Files.walkFileTree(Paths.get(FileService.getFullPath(clusterProperties, "")), new SimpleFileVisitor<Path>() {
+            SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    //.upload等隐藏目录中存放的是未完成的数据
+                    return Files.isHidden(dir) ? FileVisitResult.SKIP_SUBTREE : super.preVisitDirectory(dir, attrs);
+                }
+
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                     if (!Files.isHidden(file)) {
@@ -94,28 +116,37 @@ public class Watchdog {
                         String fullPath = FileService.getFullPath(clusterProperties, relativePath);
                         if (!FileService.runningFile.containsKey(relativePath)) {
                             try {
-                                String checksum = String.valueOf(FileUtils.checksumCRC32(file.toFile()));
+                                String checksum = FileService.checksumCRC32(clusterProperties, relativePath, IoScheduler.Priority.SCRUB);
                                 String crc32 = FileAttributes.getXattr(CommonConstant.CRC32, fullPath);
                                 if (!checksum.equals(crc32)) {
-                                    FileService.delete(clusterProperties, relativePath);
-                                    Versioned<FileEvent> fileEventVersioned = yfsConfig.fileEventMap.get(relativePath);
-                                    if (fileEventVersioned != null) {
-                                        FileEvent fileEvent = fileEventVersioned.value();
-                                        fileEvent.getAddNodes().remove(clusterProperties.getLocal());
-                                        if (fileEvent.getAddNodes().size() == 0) {
-                                            yfsConfig.fileEventMap.remove(relativePath);
-                                        } else {
-                                            yfsConfig.fileEventMap.replace(relativePath, fileEventVersioned.version(), fileEvent);
-                                        }
-                                    }
+                                    removeBrokenFile(relativePath);
+                                } else {
+                                    DedupService.register(clusterProperties, relativePath);
                                 }
                             } catch (Exception e) {
                                 logger.warn("Repair {} failure", relativePath, e);
                             }
                         }
+                    } else if (attrs.lastModifiedTime().toMillis() < new Date().getTime() - clusterProperties.getStore().getWatchdog().getRepair_delay()) {
+                        //写入过程中崩溃遗留的临时文件
+                        logger.info("Delete stale temporary file {}", file);
+                        Files.deleteIfExists(file);
                     }
                     return super.visitFile(file, attrs);
                 }
+            };
+            for (Disk disk : DiskService.getDisks(clusterProperties)) {
+                Files.walkFileTree(Paths.get(disk.getPath()), visitor);
+            }
+            //volume中的小文件
+            VolumeService.keys(clusterProperties).forEach(relativePath -> {
+                try {
+                    if (!FileService.runningFile.containsKey(relativePath) && !VolumeService.verify(clusterProperties, relativePath)) {
+                        removeBrokenFile(relativePath);
+                    }
+                } catch (Exception e) {
+                    logger.warn("Repair {} failure", relativePath, e);
+                }
             });
         } catch (Exception e) {
             logger.error("Repair failure", e);
@@ -123,6 +154,25 @@ public class Watchdog {
         logger.debug("Repair file**************************watchdog");
     }
 
+    /**
+     * 删除本地损坏的文件，并从元数据中移除当前节点
+     *
+     * @param relativePath
+     */
+    private void removeBrokenFile(String relativePath) {
+        FileService.delete(clusterProperties, relativePath);
+        Versioned<FileEvent> fileEventVersioned = yfsConfig.fileEventMap.get(relativePath);
+        if (fileEventVersioned != null) {
+            FileEvent fileEvent = fileEventVersioned.value();
+            fileEvent.getAddNodes().remove(clusterProperties.getLocal());
+            if (fileEvent.getAddNodes().size() == 0) {
+                yfsConfig.fileEventMap.remove(relativePath);
+            } else {
+                yfsConfig.fileEventMap.replace(relativePath, fileEventVersioned.version(), fileEvent);
+            }
+        }
+    }
+
 
     /**
      * 扫描本地文件，通过检测checksum，修复元数据。
@@ -132,20 +182,28 @@ public class Watchdog {
         Map<String, String> pros = PropertiesUtil.getProperty("application.properties");
         if (Boolean.valueOf(pros.get("yfs.store.metadata.repair"))) {
             try {
-                Files.walkFileTree(Paths.get(FileService.getFullPath(clusterProperties, "")), new SimpleFileVisitor<Path>() {
+                SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        return Files.isHidden(dir) ? FileVisitResult.SKIP_SUBTREE : super.preVisitDirectory(dir, attrs);
+                    }
+
                     @Override
                     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                         if (!Files.isHidden(file)) {
                             String relativePath = FileService.getRelativePath(clusterProperties, file.toString());
                             String fullPath = FileService.getFullPath(clusterProperties, relativePath);
-                            if (!FileService.runningFile.containsKey(relativePath)) {
+                            //链式复制收到的文件在上传节点完成之前还没有元数据
+                            boolean recent = attrs.lastModifiedTime().toMillis() > System.currentTimeMillis() - clusterProperties.getStore().getQos_max_time() * 1000L;
+                            if (!FileService.runningFile.containsKey(relativePath) && !recent) {
                                 try {
                                     if (!yfsConfig.fileEventMap.containsKey(relativePath)) {
-                                        String checksum = String.valueOf(FileUtils.checksumCRC32(file.toFile()));
+                                        String checksum = FileService.checksumCRC32(clusterProperties, relativePath, IoScheduler.Priority.SCRUB);
                                         String crc32 = FileAttributes.getXattr(CommonConstant.CRC32, fullPath);
                                         if (checksum.equals(crc32)) {
                                             FileEvent fileEvent = new FileEvent();
                                             fileEvent.getAddNodes().add(clusterProperties.getLocal());
+                                            fileEvent.setTargetNodes(ReplicaService.getTargetNodes(clusterProperties, relativePath));
                                             yfsConfig.fileEventMap.putIfAbsent(relativePath, fileEvent);
                                         } else {
                                             FileService.delete(clusterProperties, relativePath);
@@ -158,6 +216,25 @@ public class Watchdog {
                         }
                         return super.visitFile(file, attrs);
                     }
+                };
+                for (Disk disk : DiskService.getDisks(clusterProperties)) {
+                    Files.walkFileTree(Paths.get(disk.getPath()), visitor);
+                }
+                VolumeService.keys(clusterProperties).forEach(relativePath -> {
+                    if (!FileService.runningFile.containsKey(relativePath) && !yfsConfig.fileEventMap.containsKey(relativePath)) {
+                        try {
+                            if (VolumeService.verify(clusterProperties, relativePath)) {
+                                FileEvent fileEvent = new FileEvent();
+                                fileEvent.getAddNodes().add(clusterProperties.getLocal());
+                                fileEvent.setTargetNodes(ReplicaService.getTargetNodes(clusterProperties, relativePath));
+                                yfsConfig.fileEventMap.putIfAbsent(relativePath, fileEvent);
+                            } else {
+                                FileService.delete(clusterProperties, relativePath);
+                            }
+                        } catch (Exception e) {
+                            logger.warn("Repair {} failure", relativePath, e);
+                        }
+                    }
                 });
             } catch (Exception e) {
                 logger.error("Repair failure", e);
@@ -166,17 +243,55 @@ public class Watchdog {
         }
     }
 
+    /**
+     * 定时清理过期的断点续传会话
+     */
+    @Scheduled(initialDelayString = "${yfs.store.watchdog.initial_delay}", fixedDelayString = "${yfs.store.watchdog.repair_delay}")
+    public void cleanUploadSession() {
+        try {
+            UploadService.cleanExpired(clusterProperties);
+        } catch (Exception e) {
+            logger.error("Clean upload session failure", e);
+        }
+        logger.debug("Clean upload session**************************watchdog");
+    }
+
+    /**
+     * 定时压缩volume，回收已删除小文件占用的空间
+     */
+    @Scheduled(initialDelayString = "${yfs.store.watchdog.initial_delay}", fixedDelayString = "${yfs.store.watchdog.repair_delay}")
+    public void compactVolume() {
+        try {
+            VolumeService.compact(clusterProperties);
+        } catch (Exception e) {
+            logger.error("Compact volume failure", e);
+        }
+        logger.debug("Compact volume**************************watchdog");
+    }
+
+    /**
+     * 定时将热数据层中已经冷却的文件迁移到容量层
+     */
+    @Scheduled(initialDelayString = "${yfs.store.watchdog.initial_delay}", fixedDelayString = "${yfs.store.watchdog.repair_delay}")
+    public void migrateTier() {
+        try {
+            TierService.migrate(clusterProperties);
+        } catch (Exception e) {
+            logger.error("Migrate tier failure", e);
+        }
+        logger.debug("Migrate tier**************************watchdog");
+    }
+
     /**
      * 1.定时向Gateway上传存储节点信息，Gateway才能根据store的信息进行路由。
      * 2.定时更新本地node信息。
      */
     @Scheduled(fixedRate = 5000)
     public void watchServer() {
-        StringBuilder fileDir = new StringBuilder();
-        if (!clusterProperties.getStore().getFiledata().getDir().startsWith(File.separator)) {
-            fileDir.append(FileUtils.getUserDirectoryPath()).append(File.separator);
+        String metadataDir = clusterProperties.getStore().getMetadata().getDir();
+        if (!metadataDir.startsWith(File.separator)) {
+            metadataDir = FileUtils.getUserDirectoryPath() + File.separator + metadataDir;
         }
-        String metadataDir = fileDir.toString() + clusterProperties.getStore().getMetadata().getDir();
         File metadataDirFile = new File(metadataDir);
         if (!metadataDirFile.exists()) {
             try {
@@ -185,13 +300,14 @@ public class Watchdog {
                 logger.error("mkdir error", e);
             }
         }
-        String fileDataDir = fileDir.toString() + clusterProperties.getStore().getFiledata().getDir();
-        File fileDataDirFile = new File(fileDataDir);
-        if (!fileDataDirFile.exists()) {
-            try {
-                FileUtils.forceMkdir(fileDataDirFile);
-            } catch (IOException e) {
-                logger.error("mkdir error", e);
+        for (Disk disk : DiskService.getDisks(clusterProperties)) {
+            File fileDataDirFile = new File(disk.getPath());
+            if (!fileDataDirFile.exists()) {
+                try {
+                    FileUtils.forceMkdir(fileDataDirFile);
+                } catch (IOException e) {
+                    logger.error("mkdir error", e);
+                }
             }
         }
 
@@ -212,7 +328,14 @@ public class Watchdog {
                     clusterProperties.getGateway().getPort(),
                     new Date().getTime(),
                     FileSystemUtils.freeSpaceKb(metadataDir),
-                    FileSystemUtils.freeSpaceKb(fileDataDir));
+                    0L);
+            long fileFreeSpaceKb = 0;
+            for (Disk disk : DiskService.getDisks(clusterProperties)) {
+                long freeSpaceKb = FileSystemUtils.freeSpaceKb(disk.getPath());
+                storeInfo.getDiskFreeSpaceKb().put(disk.getPath(), freeSpaceKb);
+                fileFreeSpaceKb += freeSpaceKb;
+            }
+            storeInfo.setFileFreeSpaceKb(fileFreeSpaceKb);
 
 
             yfsConfig.storeInfoMap.put(CommonConstant.storeInfoConsistentMapKey(clusterProperties.getGroup(), clusterNode.getIp(), clusterNode.getHttp_port()), storeInfo);
@@ -15,7 +15,10 @@
  */
 package info.yangguo.yfs.config;
 
+import info.yangguo.yfs.service.PeerService;
 import org.apache.coyote.http11.AbstractHttp11Protocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.embedded.tomcat.TomcatConnectorCustomizer;
 import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
@@ -23,6 +26,7 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.web.filter.CharacterEncodingFilter;
 import org.springframework.web.multipart.MultipartResolver;
@@ -30,15 +34,20 @@ import org.springframework.web.multipart.commons.CommonsMultipartResolver;
 import org.springframework.web.multipart.support.StandardServletMultipartResolver;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
 
 import javax.servlet.Filter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 @Configuration
 @EnableWebMvc
 @EnableConfigurationProperties({ClusterProperties.class})
 public class WebConfig {
+    private static Logger logger = LoggerFactory.getLogger(WebConfig.class);
     @Autowired
     private ClusterProperties clusterProperties;
 
@@ -82,7 +91,13 @@ public class WebConfig {
 
     @Bean
     public MultipartResolver multipartResolver() {
-        CommonsMultipartResolver multipartResolver = new CommonsMultipartResolver();
+        CommonsMultipartResolver multipartResolver = new CommonsMultipartResolver() {
+            //流式上传时由FileService直接解析请求体，不能让resolver提前把文件落地到临时目录
+            @Override
+            public boolean isMultipart(HttpServletRequest request) {
+                return !clusterProperties.getStore().isStreaming_upload() && super.isMultipart(request);
+            }
+        };
         multipartResolver.setDefaultEncoding("UTF-8");
         multipartResolver.setMaxUploadSize(clusterProperties.getStore().getMax_upload_size());
         return multipartResolver;
@@ -106,6 +121,21 @@ public class WebConfig {
 
                 super.addResourceHandlers(registry);
             }
+
+            @Override
+            public void addInterceptors(InterceptorRegistry registry) {
+                //链式复制和纠删码shard是节点之间使用的接口，没有经过上传的校验，只允许集群内的store访问
+                registry.addInterceptor(new HandlerInterceptorAdapter() {
+                    @Override
+                    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+                        if (PeerService.isPeer(clusterProperties, request.getRemoteAddr()))
+                            return true;
+                        logger.warn("Reject internal request {} from {}", request.getRequestURI(), request.getRemoteAddr());
+                        response.setStatus(HttpStatus.FORBIDDEN.value());
+                        return false;
+                    }
+                }).addPathPatterns("/api/chain/**", "/api/shard/**");
+            }
         };
     }
-}
\ No newline at end of file
+}
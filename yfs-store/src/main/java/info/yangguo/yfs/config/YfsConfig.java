@@ -23,7 +23,13 @@ import info.yangguo.yfs.common.CommonConstant;
 import info.yangguo.yfs.common.po.FileEvent;
 import info.yangguo.yfs.common.po.StoreInfo;
 import info.yangguo.yfs.common.utils.JsonUtil;
+import info.yangguo.yfs.service.DedupService;
+import info.yangguo.yfs.service.ErasureCodeService;
+import info.yangguo.yfs.service.EventService;
 import info.yangguo.yfs.service.FileService;
+import info.yangguo.yfs.service.ReplicaService;
+import info.yangguo.yfs.service.ReplicationService;
+import info.yangguo.yfs.service.ReplicationTransport;
 import io.atomix.cluster.Member;
 import io.atomix.cluster.discovery.BootstrapDiscoveryProvider;
 import io.atomix.core.Atomix;
@@ -44,10 +50,10 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -56,7 +62,7 @@ public class YfsConfig {
     private static Logger logger = LoggerFactory.getLogger(YfsConfig.class);
     public AtomicMap<String, FileEvent> fileEventMap = null;
     public AtomicMap<String, StoreInfo> storeInfoMap = null;
-    public Cache<String, CountDownLatch> cache;
+    public Cache<String, EventService.Acknowledgment> cache;
     @Autowired
     private ClusterProperties clusterProperties;
 
@@ -169,6 +175,25 @@ public class YfsConfig {
                 .withCacheEnabled()
                 .withCacheSize(100000)
                 .build();
+        String metadataDir = null;
+        if (clusterProperties.getStore().getMetadata().getDir().startsWith(File.separator)) {
+            metadataDir = clusterProperties.getStore().getMetadata().getDir();
+        } else {
+            metadataDir = FileUtils.getUserDirectoryPath() + File.separator + clusterProperties.getStore().getMetadata().getDir();
+        }
+        ReplicationTransport.start(clusterProperties);
+        DedupService.load(clusterProperties);
+        try {
+            //继续重启之前没有完成的同步
+            ReplicationService.recover(new File(metadataDir + File.separator + "replication.journal"), key -> {
+                Versioned<FileEvent> fileEventVersioned = fileEventMap.get(key);
+                if (fileEventVersioned != null && fileEventVersioned.value().getRemoveNodes().size() == 0
+                        && !fileEventVersioned.value().getAddNodes().contains(clusterProperties.getLocal()))
+                    submitSync(clusterProperties, key, fileEventVersioned, MapEvent.Type.UPDATE);
+            });
+        } catch (IOException e) {
+            logger.warn("Failed to recover replication journal", e);
+        }
         fileEventMap.addListener(event -> {
             String key = event.key();
             switch (event.type()) {
@@ -180,7 +205,7 @@ public class YfsConfig {
                                 MapEvent.Type.INSERT.name(),
                                 key,
                                 JsonUtil.toJson(insertEvent, true));
-                        syncFile(clusterProperties, key, insertValue, MapEvent.Type.INSERT);
+                        submitSync(clusterProperties, key, insertValue, MapEvent.Type.INSERT);
                     }
                     break;
                 case UPDATE:
@@ -197,29 +222,33 @@ public class YfsConfig {
                                 key,
                                 JsonUtil.toJson(oldFileEvent, true),
                                 JsonUtil.toJson(newFileEvent, true));
-                        syncFile(clusterProperties, key, newValue, MapEvent.Type.UPDATE);
-                    } else if (removeNodes.size() > 0 && !removeNodes.contains(clusterProperties.getLocal())) {
+                        submitSync(clusterProperties, key, newValue, MapEvent.Type.UPDATE);
+                    } else if (removeNodes.size() > 0 && !removeNodes.contains(clusterProperties.getLocal())
+                            && ReplicaService.isHolder(clusterProperties, newFileEvent)) {
                         logger.info("FileEventMap {} {}:\noldValue:{}\nnewValue:{}",
                                 MapEvent.Type.UPDATE.name(),
                                 key,
                                 JsonUtil.toJson(oldFileEvent, true),
                                 JsonUtil.toJson(newFileEvent, true));
-                        FileService.delete(clusterProperties, key);
+                        FileService.delete(clusterProperties, key, newFileEvent);
                         updateRemoveNodes(clusterProperties, key);
                     }
-                    //为了实现QOS，yfs使用CountDownLatch来实现上传节点的有限时间阻塞，由yfs.store.qos_max_time配置决定。
-                    //上传节点在上传之前会创建一个CountDownLatch放入到本地缓存，文件上传完成之后，上传节点自身会发布update event信息；
+                    if (removeNodes.size() == 0 && newFileEvent.getErasureCode() != null) {
+                        ErasureCodeService.trim(clusterProperties, key, newFileEvent);
+                    }
+                    //为了实现QOS，yfs使用Acknowledgment来实现上传请求的有限时间等待，由yfs.store.qos_max_time配置决定，等待期间不占用线程。
+                    //上传节点在上传之前会创建一个Acknowledgment放入到本地缓存，文件上传完成之后，上传节点自身会发布update event信息；
                     //同步节点会收到update event，然后同步文件，同步完成之后，也会发布update event；由于event是一个broadcast event，
-                    //所以只有上传节点才需要处理latch，由于上传节点是addNodes中的第一个节点，所以便有下面的逻辑。
-                    //特别注意新增节点为了防止网络导致的通知不可达，所以新增节点latch.countDown在写入元数据的时候就已经减一了，所以需要
+                    //所以只有上传节点才需要处理acknowledgment，由于上传节点是addNodes中的第一个节点，所以便有下面的逻辑。
+                    //特别注意新增节点为了防止网络导致的通知不可达，所以新增节点acknowledgment.countDown在写入元数据的时候就已经减一了，所以需要
                     //addNodes.size>1
                     if (removeNodes.size() == 0
                             && addNodes.size() > 1
                             && clusterProperties.getLocal().equals(addNodes.get(0))
                     ) {
-                        CountDownLatch latch = cache.getIfPresent(event.key());
-                        if (latch != null) {
-                            latch.countDown();
+                        EventService.Acknowledgment acknowledgment = cache.getIfPresent(event.key());
+                        if (acknowledgment != null) {
+                            acknowledgment.countDown(addNodes.get(addNodes.size() - 1));
                         }
                     }
                     break;
@@ -262,16 +291,64 @@ public class YfsConfig {
      * @param fileEventVersioned
      * @param type
      */
-    private void syncFile(ClusterProperties clusterProperties, String fileRelativePath, Versioned<FileEvent> fileEventVersioned, MapEvent.Type type) {
+    /**
+     * 同步可能需要下载很大的文件，交给ReplicationService执行，不能阻塞event线程
+     */
+    public void submitSync(ClusterProperties clusterProperties, String fileRelativePath, Versioned<FileEvent> fileEventVersioned, MapEvent.Type type) {
+        FileEvent fileEvent = fileEventVersioned.value();
+        if (!ReplicaService.isHolder(clusterProperties, fileEvent))
+            return;
+        String node = fileEvent.getAddNodes().isEmpty() ? clusterProperties.getLocal() : fileEvent.getAddNodes().get(0);
+        //纠删码和去重的文件不是直接拉取数据，不能合并
+        boolean batchable = fileEvent.getErasureCode() == null && fileEvent.getLinkPath() == null;
+        ReplicationService.submit(clusterProperties, node, fileRelativePath, fileEvent.getSize(), batchable, () -> {
+            //排队期间文件可能已经被删除，以执行时的元数据为准
+            Versioned<FileEvent> latest = fileEventMap.get(fileRelativePath);
+            if (latest == null || latest.value().getRemoveNodes().size() > 0) {
+                logger.debug("{} has been deleted, skip sync", fileRelativePath);
+                return true;
+            }
+            return syncFile(clusterProperties, fileRelativePath, latest, type);
+        });
+    }
+
+    /**
+     * @return 同步失败或者元数据没有更新成功时返回false，需要重新同步
+     */
+    private boolean syncFile(ClusterProperties clusterProperties, String fileRelativePath, Versioned<FileEvent> fileEventVersioned, MapEvent.Type type) {
         boolean isSendEvent = false;
         FileEvent fileEvent = fileEventVersioned.value();
-        if (!fileEvent.getAddNodes().contains(clusterProperties.getLocal())) {
+        if (!ReplicaService.isHolder(clusterProperties, fileEvent)) {
+            //当前节点不在副本集合中
+            return true;
+        }
+        if (fileEvent.getErasureCode() != null) {
+            //纠删码存储时只拉取分配给当前节点的shard
+            if (!fileEvent.getAddNodes().contains(clusterProperties.getLocal())
+                    && ErasureCodeService.sync(clusterProperties, fileRelativePath, fileEvent)) {
+                fileEvent.getAddNodes().add(clusterProperties.getLocal());
+                isSendEvent = true;
+            }
+        } else if (!fileEvent.getAddNodes().contains(clusterProperties.getLocal())
+                && fileEvent.getLinkPath() != null
+                && DedupService.linkIfPresent(clusterProperties, fileEvent.getLinkPath(), fileRelativePath)) {
+            fileEvent.getAddNodes().add(clusterProperties.getLocal());
+            isSendEvent = true;
+        } else if (!fileEvent.getAddNodes().contains(clusterProperties.getLocal())
+                && FileService.exists(clusterProperties, fileRelativePath)) {
+            //已经在批量同步中写入本地，只需要更新元数据
+            fileEvent.getAddNodes().add(clusterProperties.getLocal());
+            isSendEvent = true;
+        } else if (!fileEvent.getAddNodes().contains(clusterProperties.getLocal())) {
             for (String addNode : fileEvent.getAddNodes()) {
                 try {
                     ClusterProperties.ClusterNode clusterNode = storeNodeMap.apply(clusterProperties).get(addNode);
-                    String fileUrl = "http://" + clusterNode.getIp() + ":" + clusterNode.getHttp_port() + "/" + fileRelativePath;
-
-                    FileService.store(clusterProperties, fileRelativePath, fileUrl);
+                    if (ReplicationTransport.isEnabled(clusterNode)) {
+                        ReplicationTransport.store(clusterProperties, fileRelativePath, clusterNode);
+                    } else {
+                        String fileUrl = "http://" + clusterNode.getIp() + ":" + clusterNode.getHttp_port() + "/" + fileRelativePath;
+                        FileService.store(clusterProperties, fileRelativePath, fileUrl);
+                    }
                     fileEvent.getAddNodes().add(clusterProperties.getLocal());
                     isSendEvent = true;
                     break;
@@ -282,10 +359,31 @@ public class YfsConfig {
             }
         }
 
-        if (isSendEvent)
-            if (fileEventMap.replace(fileRelativePath, fileEventVersioned.version(), fileEvent))
-                logger.debug("Success to replace event when sync file {}", fileRelativePath);
-
+        if (!fileEvent.getAddNodes().contains(clusterProperties.getLocal()))
+            return false;
+        if (isSendEvent) {
+            //排队期间其他节点可能已经更新了元数据，版本冲突时基于最新的版本重试
+            long version = fileEventVersioned.version();
+            for (int i = 0; i < 3; i++) {
+                if (fileEventMap.replace(fileRelativePath, version, fileEvent)) {
+                    logger.debug("Success to replace event when sync file {}", fileRelativePath);
+                    return true;
+                }
+                Versioned<FileEvent> latest = fileEventMap.get(fileRelativePath);
+                if (latest == null || latest.value().getRemoveNodes().size() > 0) {
+                    //同步期间文件被删除，删除事件处理时文件还在同步中，这里删除刚刚写入的副本
+                    FileService.delete(clusterProperties, fileRelativePath, fileEvent);
+                    return true;
+                }
+                if (latest.value().getAddNodes().contains(clusterProperties.getLocal()))
+                    return true;
+                version = latest.version();
+                fileEvent = latest.value();
+                fileEvent.getAddNodes().add(clusterProperties.getLocal());
+            }
+            return false;
+        }
+        return true;
     }
 
     private boolean updateRemoveNodes(ClusterProperties clusterProperties, String key) {
@@ -298,7 +396,7 @@ public class YfsConfig {
             if (!fileEvent.getRemoveNodes().contains(clusterProperties.getLocal())) {
                 fileEvent.getRemoveNodes().add(clusterProperties.getLocal());
             }
-            if (fileEvent.getRemoveNodes().size() == clusterProperties.getStore().getNode().size()) {
+            if (fileEvent.getRemoveNodes().containsAll(ReplicaService.getHolders(clusterProperties, fileEvent))) {
                 fileEventMap.remove(key);
                 result = true;
             } else {
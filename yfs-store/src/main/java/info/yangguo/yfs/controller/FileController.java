@@ -15,27 +15,38 @@
  */
 package info.yangguo.yfs.controller;
 
+import info.yangguo.yfs.common.CommonConstant;
 import info.yangguo.yfs.common.po.FileEvent;
 import info.yangguo.yfs.config.ClusterProperties;
 import info.yangguo.yfs.config.YfsConfig;
 import info.yangguo.yfs.dto.Result;
 import info.yangguo.yfs.dto.ResultCode;
+import info.yangguo.yfs.po.UploadSession;
+import info.yangguo.yfs.service.ChainReplicationService;
+import info.yangguo.yfs.service.ErasureCodeService;
 import info.yangguo.yfs.service.EventService;
 import info.yangguo.yfs.service.FileService;
+import info.yangguo.yfs.service.ReplicaService;
+import info.yangguo.yfs.service.UploadService;
 import io.atomix.utils.time.Versioned;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.swagger.annotations.ApiOperation;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
 import org.springframework.web.multipart.commons.CommonsMultipartFile;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
+import java.io.IOException;
+import java.util.Map;
 
 @Controller
 public class FileController extends BaseController {
@@ -49,28 +60,212 @@ public class FileController extends BaseController {
     @ApiOperation(value = "upload file")
     @ResponseBody
     @RequestMapping(value = "api/file", method = {RequestMethod.POST})
-    public Result upload(MultipartFile file, HttpServletRequest httpServletRequest) {
+    public DeferredResult<Result> upload(HttpServletRequest httpServletRequest) {
+        return upload(() -> {
+            if (clusterProperties.getStore().isStreaming_upload()) {
+                return FileService.store(clusterProperties, httpServletRequest);
+            } else {
+                //流式上传时请求没有被resolver解析，所以不能把MultipartFile作为参数注入
+                CommonsMultipartFile commonsMultipartFile = (CommonsMultipartFile) ((MultipartHttpServletRequest) httpServletRequest).getFile("file");
+                return FileService.store(clusterProperties, commonsMultipartFile, httpServletRequest);
+            }
+        }, httpServletRequest);
+    }
+
+    @ApiOperation(value = "upload file with raw body")
+    @ResponseBody
+    @RequestMapping(value = "api/file", method = {RequestMethod.PUT})
+    public DeferredResult<Result> put(HttpServletRequest httpServletRequest) {
+        return upload(() -> FileService.store(clusterProperties, httpServletRequest.getInputStream(), httpServletRequest), httpServletRequest);
+    }
+
+    @ApiOperation(value = "instant upload by content hash", notes = "only content held by the node receiving the request is matched, upload normally when 404 is returned")
+    @ResponseBody
+    @RequestMapping(value = "api/file/instant", method = {RequestMethod.POST})
+    public DeferredResult<Result> instant(@RequestParam long size, HttpServletRequest httpServletRequest) {
+        String sha256 = httpServletRequest.getHeader(CommonConstant.SHA256);
+        String md5 = httpServletRequest.getHeader(HttpHeaderNames.CONTENT_MD5.toString());
+        if (StringUtils.isBlank(sha256) && StringUtils.isBlank(md5)) {
+            Result result = new Result();
+            result.setCode(ResultCode.C403.code);
+            result.setValue("sha256 or Content-MD5 is required");
+            return completed(result);
+        }
+        return upload(() -> StringUtils.isNotBlank(sha256)
+                ? FileService.storeByContent(clusterProperties, CommonConstant.SHA256, sha256.trim(), size, httpServletRequest)
+                : FileService.storeByContent(clusterProperties, CommonConstant.MD5, FileService.toHexMd5(md5), size, httpServletRequest), httpServletRequest);
+    }
+
+    @ApiOperation(value = "create upload session")
+    @ResponseBody
+    @RequestMapping(value = "api/upload", method = {RequestMethod.POST})
+    public Result createSession(@RequestParam(defaultValue = "-1") long size, HttpServletRequest httpServletRequest) {
+        Result result = new Result();
+        try {
+            result.setValue(UploadService.create(clusterProperties, size, httpServletRequest));
+            result.setCode(ResultCode.C200.code);
+        } catch (Exception e) {
+            logger.error("Create upload session", e);
+            result.setCode(ResultCode.C500.getCode());
+            result.setValue(ResultCode.C500.getDesc());
+        }
+        return result;
+    }
+
+    @ApiOperation(value = "get upload session")
+    @ResponseBody
+    @RequestMapping(value = "api/upload/{id:[\\w.-]+}", method = {RequestMethod.GET})
+    public Result getSession(@PathVariable String id) {
+        Result result = new Result();
+        UploadSession uploadSession = UploadService.get(clusterProperties, id);
+        if (uploadSession != null) {
+            result.setCode(ResultCode.C200.code);
+            result.setValue(uploadSession);
+        } else {
+            result.setCode(ResultCode.C404.code);
+        }
+        return result;
+    }
+
+    @ApiOperation(value = "upload chunk")
+    @ResponseBody
+    @RequestMapping(value = "api/upload/{id:[\\w.-]+}", method = {RequestMethod.PUT})
+    public Result uploadChunk(@PathVariable String id, @RequestParam long offset, HttpServletRequest httpServletRequest) {
+        Result result = new Result();
+        UploadSession uploadSession = UploadService.get(clusterProperties, id);
+        if (uploadSession == null) {
+            result.setCode(ResultCode.C404.code);
+            return result;
+        }
+        try {
+            result.setValue(UploadService.append(clusterProperties, id, offset, httpServletRequest.getInputStream(), httpServletRequest.getContentLengthLong(), httpServletRequest.getHeader(CommonConstant.CRC32)));
+            result.setCode(ResultCode.C200.code);
+        } catch (IllegalStateException e) {
+            //offset不匹配时返回会话当前状态，客户端据此续传
+            logger.warn(e.getMessage());
+            result.setCode(ResultCode.C409.code);
+            result.setValue(uploadSession);
+        } catch (Exception e) {
+            logger.error("Upload chunk of {}", id, e);
+            result.setCode(ResultCode.C500.getCode());
+            result.setValue(ResultCode.C500.getDesc());
+        }
+        return result;
+    }
+
+    @ApiOperation(value = "upload part")
+    @ResponseBody
+    @RequestMapping(value = "api/upload/{id:[\\w.-]+}/{partNumber:\\d+}", method = {RequestMethod.PUT})
+    public Result uploadPart(@PathVariable String id, @PathVariable int partNumber, HttpServletRequest httpServletRequest) {
+        Result result = new Result();
+        UploadSession uploadSession = UploadService.get(clusterProperties, id);
+        if (uploadSession == null) {
+            result.setCode(ResultCode.C404.code);
+            return result;
+        }
+        try {
+            result.setValue(UploadService.appendPart(clusterProperties, id, partNumber, httpServletRequest.getInputStream(), httpServletRequest.getContentLengthLong(), httpServletRequest.getHeader(CommonConstant.CRC32)));
+            result.setCode(ResultCode.C200.code);
+        } catch (IllegalStateException e) {
+            logger.warn(e.getMessage());
+            result.setCode(ResultCode.C409.code);
+            result.setValue(e.getMessage());
+        } catch (Exception e) {
+            logger.error("Upload part {} of {}", partNumber, id, e);
+            result.setCode(ResultCode.C500.getCode());
+            result.setValue(ResultCode.C500.getDesc());
+        }
+        return result;
+    }
+
+    @ApiOperation(value = "commit upload session")
+    @ResponseBody
+    @RequestMapping(value = "api/upload/{id:[\\w.-]+}/commit", method = {RequestMethod.POST})
+    public DeferredResult<Result> commitSession(@PathVariable String id, HttpServletRequest httpServletRequest) {
+        if (UploadService.get(clusterProperties, id) == null) {
+            Result result = new Result();
+            result.setCode(ResultCode.C404.code);
+            return completed(result);
+        }
+        return upload(() -> UploadService.commit(clusterProperties, id), httpServletRequest);
+    }
+
+    @ApiOperation(value = "abort upload session")
+    @ResponseBody
+    @RequestMapping(value = "api/upload/{id:[\\w.-]+}", method = {RequestMethod.DELETE})
+    public Result abortSession(@PathVariable String id) {
+        Result result = new Result();
+        if (UploadService.abort(clusterProperties, id)) {
+            result.setCode(ResultCode.C200.code);
+        } else {
+            result.setCode(ResultCode.C404.code);
+        }
+        return result;
+    }
+
+    /**
+     * 文件写入本地之后，等待副本确认期间释放请求线程，由fileEventMap的listener或者超时完成响应
+     */
+    private DeferredResult<Result> upload(Storage storage, HttpServletRequest httpServletRequest) {
         Result result = new Result();
         Pair<String, FileEvent> pair = null;
         try {
-            CommonsMultipartFile commonsMultipartFile = (CommonsMultipartFile) file;
-            pair = FileService.store(clusterProperties, commonsMultipartFile, httpServletRequest);
-            boolean qosResult = EventService.create(clusterProperties, yfsConfig, pair, clusterProperties.getStore().getNode().size() / 2 + 1);
-            if (qosResult == true) {
-                result.setCode(ResultCode.C200.code);
-            } else {
-                result.setCode(ResultCode.C202.code);
+            pair = storage.store();
+            if (pair == null) {
+                //秒传时本地没有该内容，客户端需要正常上传
+                result.setCode(ResultCode.C404.code);
+                return completed(result);
             }
-            result.setValue(pair.getKey());
-            logger.debug("Success to upload {}", pair.getKey());
+            pair.getValue().setTargetNodes(ReplicaService.getTargetNodes(clusterProperties, pair.getKey()));
+            //按照请求的持久性级别等待副本节点完成同步
+            EventService.Durability durability = EventService.Durability.parse(httpServletRequest.getHeader(CommonConstant.xDurabilityHeader), clusterProperties.getStore().getDurability());
+            String key = pair.getKey();
+            FileEvent fileEvent = pair.getValue();
+            //超时由EventService处理，这里的超时只是兜底
+            Result timeoutResult = new Result();
+            timeoutResult.setCode(ResultCode.C202.code);
+            timeoutResult.setValue(key);
+            DeferredResult<Result> deferredResult = new DeferredResult<>((clusterProperties.getStore().getQos_max_time() + 10) * 1000L, timeoutResult);
+            EventService.create(clusterProperties, yfsConfig, pair, durability).whenComplete((qosResult, throwable) -> {
+                if (throwable != null) {
+                    logger.error("Upload", throwable);
+                    FileService.delete(clusterProperties, key, fileEvent);
+                    result.setCode(ResultCode.C500.getCode());
+                    result.setValue(ResultCode.C500.getDesc());
+                } else {
+                    if (qosResult == true) {
+                        result.setCode(ResultCode.C200.code);
+                    } else {
+                        result.setCode(ResultCode.C202.code);
+                    }
+                    result.setValue(key);
+                    logger.debug("Success to upload {}", key);
+                }
+                deferredResult.setResult(result);
+            });
+            return deferredResult;
+        } catch (MaxUploadSizeExceededException e) {
+            logger.warn(e.getMessage());
+            result.setCode(ResultCode.C403.getCode());
+            result.setValue("Maximum upload size of " + e.getMaxUploadSize() + " bytes exceeded");
+        } catch (IllegalStateException e) {
+            logger.warn(e.getMessage());
+            result.setCode(ResultCode.C409.getCode());
+            result.setValue(e.getMessage());
         } catch (Exception e) {
             logger.error("Upload", e);
             if (pair != null)
-                FileService.delete(clusterProperties, pair.getKey());
+                FileService.delete(clusterProperties, pair.getKey(), pair.getValue());
             result.setCode(ResultCode.C500.getCode());
             result.setValue(ResultCode.C500.getDesc());
         }
-        return result;
+        return completed(result);
+    }
+
+    private DeferredResult<Result> completed(Result result) {
+        DeferredResult<Result> deferredResult = new DeferredResult<>();
+        deferredResult.setResult(result);
+        return deferredResult;
     }
 
     @RequestMapping(value = "{first:\\w{1,3}}/{second:\\w{1,3}}/{name:.+}", method = {RequestMethod.DELETE})
@@ -82,7 +277,7 @@ public class FileController extends BaseController {
             Versioned<FileEvent> fileEventVersioned = yfsConfig.fileEventMap.get(path);
             if (fileEventVersioned != null) {
                 if (EventService.softDelete(clusterProperties, yfsConfig, path)) {
-                    FileService.delete(clusterProperties, path);
+                    FileService.delete(clusterProperties, path, fileEventVersioned.value());
                     result.setCode(ResultCode.C200.code);
                 }
             }
@@ -98,6 +293,14 @@ public class FileController extends BaseController {
     public void download(@PathVariable String first, @PathVariable String second, @PathVariable String name, @RequestHeader(required = false) String range, HttpServletRequest request, HttpServletResponse response) {
         String path = first + File.separator + second + File.separator + name;
         try {
+            if (!FileService.exists(clusterProperties, path)) {
+                //纠删码存储的文件在任何节点上都没有完整的副本
+                Versioned<FileEvent> fileEventVersioned = yfsConfig.fileEventMap.get(path);
+                if (fileEventVersioned != null && fileEventVersioned.value().getErasureCode() != null) {
+                    ErasureCodeService.getFile(clusterProperties, path, fileEventVersioned.value(), response);
+                    return;
+                }
+            }
             FileService.getFile(clusterProperties, path, request, response);
         } catch (Exception e) {
             response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
@@ -105,4 +308,48 @@ public class FileController extends BaseController {
             logger.error("download file:{}", path, e);
         }
     }
+
+    @ApiOperation(value = "download shard of erasure coded file")
+    @RequestMapping(value = "api/shard/{index:\\d+}/{first:\\w{1,3}}/{second:\\w{1,3}}/{name:.+}", method = {RequestMethod.GET})
+    public void downloadShard(@PathVariable int index, @PathVariable String first, @PathVariable String second, @PathVariable String name, HttpServletResponse response) {
+        String path = first + File.separator + second + File.separator + name;
+        try {
+            ErasureCodeService.getShard(clusterProperties, path, index, response);
+        } catch (Exception e) {
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            response.setHeader(HttpHeaderNames.CONTENT_LENGTH.toString(), "0");
+            logger.error("download shard {} of {}", index, path, e);
+        }
+    }
+
+    @ApiOperation(value = "receive file of chain replication")
+    @ResponseBody
+    @RequestMapping(value = "api/chain/{first:\\w{1,3}}/{second:\\w{1,3}}/{name:.+}", method = {RequestMethod.PUT})
+    public Map<String, String> receiveChain(@PathVariable String first, @PathVariable String second, @PathVariable String name, HttpServletRequest request, HttpServletResponse response) {
+        String path = first + File.separator + second + File.separator + name;
+        try {
+            return ChainReplicationService.receive(clusterProperties, path, request);
+        } catch (Exception e) {
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            logger.error("receive chain replication of {}", path, e);
+            return null;
+        }
+    }
+
+    @ApiOperation(value = "delete file of failed chain replication")
+    @ResponseBody
+    @RequestMapping(value = "api/chain/{first:\\w{1,3}}/{second:\\w{1,3}}/{name:.+}", method = {RequestMethod.DELETE})
+    public void deleteChain(@PathVariable String first, @PathVariable String second, @PathVariable String name) {
+        String path = first + File.separator + second + File.separator + name;
+        //元数据已经创建的文件只能通过正常的删除流程删除
+        if (yfsConfig.fileEventMap.get(path) == null) {
+            FileService.delete(clusterProperties, path);
+            logger.info("delete file of failed chain replication:{}", path);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Storage {
+        Pair<String, FileEvent> store() throws IOException;
+    }
 }
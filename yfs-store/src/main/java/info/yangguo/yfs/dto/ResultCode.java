@@ -19,6 +19,8 @@ public enum ResultCode {
     C200(200, "Success"),
     C202(202, "Accepted"),
     C403(403, "Forbidden"),
+    C404(404, "Not Found"),
+    C409(409, "Conflict"),
     C500(500, "Internal Server Error");
 
     ResultCode(int code, String desc) {
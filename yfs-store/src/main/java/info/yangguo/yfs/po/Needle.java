@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.po;
+
+import info.yangguo.yfs.service.Volume;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 小文件在volume中的位置，常驻内存，读取时只需要一次定位读。
+ */
+@Getter
+@AllArgsConstructor
+public class Needle {
+    /**
+     * 所在volume的id
+     */
+    private final int volumeId;
+    /**
+     * needle在volume中的起始位置
+     */
+    private final long offset;
+    private final int keyLength;
+    private final int metaLength;
+    private final int dataLength;
+    /**
+     * 数据的crc32
+     */
+    private final long crc32;
+
+    /**
+     * needle在volume中占用的总字节数
+     *
+     * @return
+     */
+    public long getTotalLength() {
+        return Volume.HEADER_SIZE + keyLength + metaLength + dataLength;
+    }
+}
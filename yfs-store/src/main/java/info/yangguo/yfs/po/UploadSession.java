@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.po;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 断点续传的上传会话，持久化在数据目录的.upload目录中，store重启之后依然可以继续上传。
+ */
+@Getter
+@Setter
+public class UploadSession {
+    /**
+     * 会话id，即IdMaker生成的文件名
+     */
+    private String id;
+    /**
+     * commit之后文件的相对路径
+     */
+    private String relativePath;
+    /**
+     * 文件总大小，-1表示未知
+     */
+    private long size = -1;
+    /**
+     * 已经写入的字节数，也就是下一个chunk的起始位置
+     */
+    private long offset;
+    /**
+     * 已写入部分的crc32，由各chunk的crc32合并得出
+     */
+    private long crc32;
+    private long createTime;
+    private long updateTime;
+    private Map<String, String> userMetas = new HashMap<>();
+    /**
+     * 并行上传的分片，key为分片序号，commit时按序号从小到大合并
+     */
+    private Map<Integer, UploadPart> parts = new TreeMap<>();
+}
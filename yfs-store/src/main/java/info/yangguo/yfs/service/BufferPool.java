@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 大块读写buffer的复用池，池满或者池空的时候都不会阻塞调用方。
+ */
+public class BufferPool {
+    public static final int BUFFER_SIZE = 256 * 1024;
+    private static final BlockingQueue<byte[]> pool = new ArrayBlockingQueue<>(64);
+
+    public static byte[] acquire() {
+        byte[] buff = pool.poll();
+        if (buff == null)
+            buff = new byte[BUFFER_SIZE];
+        return buff;
+    }
+
+    public static void release(byte[] buff) {
+        if (buff != null && buff.length == BUFFER_SIZE)
+            pool.offer(buff);
+    }
+}
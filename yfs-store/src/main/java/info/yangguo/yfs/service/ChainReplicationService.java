@@ -0,0 +1,368 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import com.google.common.collect.Maps;
+import info.yangguo.yfs.common.CommonConstant;
+import info.yangguo.yfs.common.utils.JsonUtil;
+import info.yangguo.yfs.config.ClusterProperties;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * 链式复制：上传节点在写本地磁盘的同时把原始数据转发给副本链上的下一个节点，每个节点同样边写边转发，
+ * 多数副本确认的耗时接近一次传输的时间，而不是写完之后再由其他节点拉取。
+ * 每个节点返回自己及下游节点的crc32，上游只保留和自己一致的节点，最终由上传节点写入FileEvent的addNodes；
+ * 没有确认的节点仍然通过event拉取。
+ */
+public class ChainReplicationService {
+    private static Logger logger = LoggerFactory.getLogger(ChainReplicationService.class);
+    /**
+     * 上传线程和转发线程之间最多缓存的数据块数
+     */
+    private static final int QUEUE_SIZE = 16;
+    private static final byte[] EOF = new byte[0];
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "chain-forward-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public static boolean isEnabled(ClusterProperties clusterProperties) {
+        return clusterProperties.getStore().getReplication() != null && clusterProperties.getStore().getReplication().isChain();
+    }
+
+    /**
+     * 当前节点之后的副本链
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @return
+     */
+    public static List<String> getChain(ClusterProperties clusterProperties, String relativePath) {
+        List<String> holders = ReplicaService.getTargetNodes(clusterProperties, relativePath);
+        if (holders.isEmpty())
+            holders = clusterProperties.getStore().getNode().stream().map(ClusterProperties.ClusterNode::getId).collect(Collectors.toList());
+        return holders.stream().filter(node -> !node.equals(clusterProperties.getLocal())).sorted().collect(Collectors.toList());
+    }
+
+    /**
+     * 向副本链的第一个节点转发数据，数据通过返回的Forwarder写入
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param chain             副本链，为空时不转发
+     * @param codec             文件在磁盘上的编码，各节点保持一致
+     * @param crc32             客户端提供的crc32，可以为null
+     * @param userMetas
+     * @return
+     */
+    public static Forwarder forward(ClusterProperties clusterProperties, String relativePath, List<String> chain, String codec, String crc32, Map<String, String> userMetas) {
+        return new Forwarder(clusterProperties, relativePath, chain, codec, crc32, userMetas);
+    }
+
+    /**
+     * 副本链上的节点接收数据，写入本地的同时转发给下游
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param httpServletRequest
+     * @return 节点->crc32，包含当前节点以及crc32和当前节点一致的下游节点
+     * @throws IOException
+     */
+    public static Map<String, String> receive(ClusterProperties clusterProperties, String relativePath, HttpServletRequest httpServletRequest) throws IOException {
+        String header = httpServletRequest.getHeader(CommonConstant.xChainHeader);
+        List<String> chain = StringUtils.isBlank(header) ? Collections.emptyList() : Arrays.asList(header.split(","));
+        String codec = StringUtils.trimToNull(httpServletRequest.getHeader(CommonConstant.xChainCodecHeader));
+        String crc32 = StringUtils.trimToNull(httpServletRequest.getHeader(CommonConstant.CRC32));
+        Map<String, String> userMetas = FileService.getUserMetas(httpServletRequest);
+        Map<String, String> systemMetas = Maps.newHashMap();
+        if (codec != null)
+            systemMetas.put(CommonConstant.CODEC, codec);
+        if (crc32 != null)
+            systemMetas.put(CommonConstant.CRC32, crc32);
+        if (FileService.runningFile.putIfAbsent(relativePath, new Date().getTime()) != null)
+            throw new IllegalStateException(relativePath + " is being written");
+        Forwarder forwarder = forward(clusterProperties, relativePath, chain, codec, crc32, userMetas);
+        try {
+            InputStream inputStream = new TeeInputStream(httpServletRequest.getInputStream(), forwarder.getOutputStream());
+            FileDigest fileDigest = FileService.store(clusterProperties, relativePath, inputStream, systemMetas, userMetas, false, IoScheduler.Priority.REPLICATION);
+            Map<String, String> result = forwarder.finish(fileDigest.getCrc32());
+            result.put(clusterProperties.getLocal(), fileDigest.getCrc32());
+            DedupService.register(clusterProperties, relativePath);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            forwarder.abort();
+            FileService.delete(clusterProperties, relativePath);
+            throw e;
+        } finally {
+            FileService.runningFile.remove(relativePath);
+        }
+    }
+
+    /**
+     * 上传失败时删除已经转发到其他节点的数据
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param nodes
+     */
+    public static void delete(ClusterProperties clusterProperties, String relativePath, Collection<String> nodes) {
+        for (String nodeId : nodes) {
+            try {
+                ClusterProperties.ClusterNode node = getNode(clusterProperties, nodeId);
+                HttpDelete request = new HttpDelete("http://" + node.getIp() + ":" + node.getHttp_port() + "/api/chain/" + relativePath);
+                int timeout = clusterProperties.getStore().getQos_max_time() * 1000;
+                request.setConfig(RequestConfig.custom().setConnectTimeout(timeout).setSocketTimeout(timeout).build());
+                HttpResponse response = FileService.httpClient.execute(request);
+                EntityUtils.consumeQuietly(response.getEntity());
+            } catch (IOException e) {
+                logger.warn("Failed to delete {} in {}", relativePath, nodeId, e);
+            }
+        }
+    }
+
+    private static ClusterProperties.ClusterNode getNode(ClusterProperties clusterProperties, String nodeId) throws IOException {
+        return clusterProperties.getStore().getNode().stream()
+                .filter(node -> node.getId().equals(nodeId))
+                .findFirst()
+                .orElseThrow(() -> new IOException("Unknown node " + nodeId));
+    }
+
+    public static class Forwarder {
+        private final ClusterProperties clusterProperties;
+        private final String relativePath;
+        private final List<String> chain;
+        /**
+         * 等待下游的最长时间，超时之后由event拉取
+         */
+        private final long timeout;
+        /**
+         * 每个数据块等待下游接收的最长时间，超时之后停止转发，上传线程只写本地
+         */
+        private final long writeTimeout;
+        private final BlockingQueue<byte[]> queue;
+        private final Future<Map<String, String>> future;
+        private final OutputStream outputStream;
+        /**
+         * 下游失败之后不再转发，本地的写入不受影响
+         */
+        private volatile boolean failed;
+        private volatile HttpPut request;
+
+        private Forwarder(ClusterProperties clusterProperties, String relativePath, List<String> chain, String codec, String crc32, Map<String, String> userMetas) {
+            this.clusterProperties = clusterProperties;
+            this.relativePath = relativePath;
+            this.chain = chain;
+            this.timeout = clusterProperties.getStore().getQos_max_time() * 1000L;
+            long chainTimeout = clusterProperties.getStore().getReplication().getChain_timeout();
+            this.writeTimeout = chainTimeout > 0 ? chainTimeout : timeout;
+            if (chain.isEmpty()) {
+                this.queue = null;
+                this.future = null;
+                this.outputStream = new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                    }
+                };
+                return;
+            }
+            this.queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+            this.future = executor.submit(() -> {
+                try {
+                    ClusterProperties.ClusterNode node = getNode(clusterProperties, chain.get(0));
+                    HttpPut request = new HttpPut("http://" + node.getIp() + ":" + node.getHttp_port() + "/api/chain/" + relativePath);
+                    //对端没有响应时不会一直占用线程
+                    request.setConfig(RequestConfig.custom().setConnectTimeout((int) timeout).setSocketTimeout((int) timeout).build());
+                    this.request = request;
+                    if (failed)
+                        throw new IOException("Forwarding " + relativePath + " is aborted");
+                    request.setHeader(CommonConstant.xChainHeader, String.join(",", chain.subList(1, chain.size())));
+                    if (codec != null)
+                        request.setHeader(CommonConstant.xChainCodecHeader, codec);
+                    if (crc32 != null)
+                        request.setHeader(CommonConstant.CRC32, crc32);
+                    userMetas.forEach((key, value) -> {
+                        if (key.startsWith(CommonConstant.xHeaderPrefix))
+                            request.setHeader(key, value);
+                    });
+                    request.setEntity(new InputStreamEntity(new QueueInputStream(), -1));
+                    HttpResponse response = FileService.httpClient.execute(request);
+                    String body = EntityUtils.toString(response.getEntity());
+                    if (response.getStatusLine().getStatusCode() != 200)
+                        throw new IOException("Failed to forward " + relativePath + " to " + chain.get(0) + ": " + body);
+                    Map<String, String> result = Maps.newHashMap();
+                    ((Map<?, ?>) JsonUtil.fromJson(body, Map.class)).forEach((key, value) -> result.put(String.valueOf(key), String.valueOf(value)));
+                    return result;
+                } finally {
+                    //下游失败之后上传线程不再写入队列
+                    failed = true;
+                    queue.clear();
+                }
+            });
+            this.outputStream = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    if (failed || len == 0)
+                        return;
+                    offer(Arrays.copyOfRange(b, off, off + len));
+                }
+            };
+        }
+
+        /**
+         * 下游在writeTimeout内没有取走数据时停止转发，不会长时间占用上传线程
+         */
+        private void offer(byte[] data) {
+            try {
+                if (queue.offer(data, writeTimeout, TimeUnit.MILLISECONDS))
+                    return;
+                logger.warn("Stop forwarding {} to {}: downstream is too slow", relativePath, chain.get(0));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            abort();
+        }
+
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        /**
+         * 本地写入完成之后等待下游的结果
+         *
+         * @param crc32 本地计算的crc32
+         * @return crc32和本地一致的下游节点
+         */
+        public Map<String, String> finish(String crc32) {
+            Map<String, String> result = Maps.newHashMap();
+            if (future == null)
+                return result;
+            if (!failed)
+                offer(EOF);
+            try {
+                List<String> mismatched = new ArrayList<>();
+                future.get(timeout, TimeUnit.MILLISECONDS).forEach((node, nodeCrc32) -> {
+                    if (nodeCrc32.equals(crc32)) {
+                        result.put(node, nodeCrc32);
+                    } else {
+                        logger.warn("Crc32 of {} in {} doesn't match, it will be resynced", relativePath, node);
+                        mismatched.add(node);
+                    }
+                });
+                //同步时本地已经存在的文件不会重新拉取，损坏的副本必须先删除
+                delete(clusterProperties, relativePath, mismatched);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException | CancellationException e) {
+                //中断转发并删除下游已经写入的文件，之后都通过event拉取
+                logger.warn("Failed to forward {} to {}, it will be resynced", relativePath, chain, e instanceof ExecutionException ? e.getCause() : e);
+                abort();
+                delete(clusterProperties, relativePath, chain);
+            }
+            return result;
+        }
+
+        /**
+         * 本地写入失败时中断转发，下游读到不完整的chunked数据之后会删除自己的文件
+         */
+        public void abort() {
+            if (future == null)
+                return;
+            failed = true;
+            future.cancel(true);
+            //阻塞在socket上的请求不响应中断
+            HttpPut tmp = request;
+            if (tmp != null)
+                tmp.abort();
+        }
+
+        /**
+         * 转发线程从队列中读取数据，转发中断之后抛出异常，下游读到不完整的chunked数据之后会删除自己的文件
+         */
+        private class QueueInputStream extends InputStream {
+            private byte[] current = EOF;
+            private int position;
+            private boolean eof;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (position == current.length) {
+                    if (eof)
+                        return -1;
+                    current = take();
+                    position = 0;
+                    eof = current == EOF;
+                }
+                int n = Math.min(len, current.length - position);
+                System.arraycopy(current, position, b, off, n);
+                position += n;
+                return n;
+            }
+
+            private byte[] take() throws IOException {
+                long deadline = System.currentTimeMillis() + timeout;
+                try {
+                    while (!failed) {
+                        byte[] data = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (data != null)
+                            return data;
+                        if (System.currentTimeMillis() > deadline)
+                            throw new IOException("Timeout to read " + relativePath + " from upstream");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("Forwarding " + relativePath + " is aborted");
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import info.yangguo.yfs.config.ClusterProperties;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 文件的透明压缩。codec记录在xattr中，crc32、sha256及md5都是针对原始内容计算的。
+ * 客户端或者其他节点接受该编码时直接返回磁盘上的数据，否则边读边解压。
+ */
+public class CompressService {
+    public static final String GZIP = "gzip";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 判断上传的文件是否需要压缩
+     *
+     * @param clusterProperties
+     * @param contentType
+     * @param compressHeader    x-yfs-compress的值，不为空时优先
+     * @return 需要压缩时返回codec，否则返回null
+     */
+    public static String choose(ClusterProperties clusterProperties, String contentType, String compressHeader) {
+        if (StringUtils.isNotBlank(compressHeader))
+            return Boolean.parseBoolean(compressHeader.trim()) ? GZIP : null;
+        ClusterProperties.Compress compress = clusterProperties.getStore().getCompress();
+        if (compress == null || !compress.isEnable() || StringUtils.isBlank(contentType) || StringUtils.isBlank(compress.getContent_types()))
+            return null;
+        contentType = contentType.trim().toLowerCase();
+        for (String type : compress.getContent_types().split(",")) {
+            if (StringUtils.isNotBlank(type) && contentType.startsWith(type.trim().toLowerCase()))
+                return GZIP;
+        }
+        return null;
+    }
+
+    public static OutputStream encode(String codec, OutputStream outputStream) throws IOException {
+        if (GZIP.equals(codec))
+            return new GZIPOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE), BUFFER_SIZE);
+        throw new IOException("Unsupported codec " + codec);
+    }
+
+    public static InputStream decode(String codec, InputStream inputStream) throws IOException {
+        if (GZIP.equals(codec))
+            return new GZIPInputStream(inputStream, BUFFER_SIZE);
+        throw new IOException("Unsupported codec " + codec);
+    }
+
+    /**
+     * 客户端是否接受该编码，q=0表示明确拒绝
+     *
+     * @param request
+     * @param codec
+     * @return
+     */
+    public static boolean isAccepted(HttpServletRequest request, String codec) {
+        Enumeration<String> headers = request.getHeaders(HttpHeaderNames.ACCEPT_ENCODING.toString());
+        while (headers != null && headers.hasMoreElements()) {
+            for (String coding : headers.nextElement().split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase(codec)) {
+                    for (int i = 1; i < parts.length; i++) {
+                        String param = parts[i].trim();
+                        if (param.startsWith("q=") && StringUtils.strip(param.substring(2), "0.").isEmpty())
+                            return false;
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
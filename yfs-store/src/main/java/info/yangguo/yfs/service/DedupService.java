@@ -0,0 +1,249 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import info.yangguo.yfs.common.CommonConstant;
+import info.yangguo.yfs.config.ClusterProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于内容的去重：以sha256及md5为key记录一个持有该内容的文件，内容相同的新文件替换为它的硬链接。
+ * 引用计数就是文件系统的nlink，删除任何一个文件名都不影响其他文件名，最后一个文件名删除时数据才会被回收。
+ * 由于硬链接共享xattr，只有用户元数据完全相同的文件才会被去重。
+ */
+public class DedupService {
+    private static Logger logger = LoggerFactory.getLogger(DedupService.class);
+    /**
+     * 算法:hash->相对路径，只记录当前节点持有的文件，重启之后由load在后台从xattr重建
+     */
+    private static final Map<String, String> contents = new ConcurrentHashMap<>();
+
+    public static boolean isEnabled(ClusterProperties clusterProperties) {
+        return clusterProperties.getStore().getFiledata().isDedup();
+    }
+
+    /**
+     * 启动时在后台扫描本地文件，从xattr重建内容索引，不需要等待watchdog计算checksum。
+     * 扫描完成之前秒传可能查不到已有内容，客户端会退回到正常上传
+     *
+     * @param clusterProperties
+     */
+    public static void load(ClusterProperties clusterProperties) {
+        if (!isEnabled(clusterProperties))
+            return;
+        Thread thread = new Thread(() -> {
+            SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    //.upload、.shard等隐藏目录中不是完整的文件
+                    return Files.isHidden(dir) ? FileVisitResult.SKIP_SUBTREE : super.preVisitDirectory(dir, attrs);
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!Files.isHidden(file))
+                        register(clusterProperties, FileService.getRelativePath(clusterProperties, file.toString()));
+                    return super.visitFile(file, attrs);
+                }
+            };
+            for (Disk disk : DiskService.getDisks(clusterProperties)) {
+                try {
+                    Files.walkFileTree(Paths.get(disk.getPath()), visitor);
+                } catch (IOException e) {
+                    logger.warn("Failed to load contents of {}", disk.getPath(), e);
+                }
+            }
+            logger.info("Success to load {} contents", contents.size());
+        }, "dedup-loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 记录持有该内容的文件，已有记录时不覆盖
+     *
+     * @param algorithm    sha256或者md5
+     * @param hash
+     * @param relativePath
+     */
+    public static void register(String algorithm, String hash, String relativePath) {
+        contents.putIfAbsent(algorithm + ":" + hash, relativePath);
+    }
+
+    /**
+     * 从已经写入的文件的xattr中读取hash并记录，副本同步、链接以及watchdog扫描之后调用，
+     * 使每个副本节点都能对之后同步过来的相同内容去重
+     *
+     * @param clusterProperties
+     * @param relativePath
+     */
+    public static void register(ClusterProperties clusterProperties, String relativePath) {
+        if (!isEnabled(clusterProperties))
+            return;
+        String fullPath = FileService.getFullPath(clusterProperties, relativePath);
+        //存储在volume中的小文件不参与去重
+        if (!Files.isRegularFile(Paths.get(fullPath)))
+            return;
+        try {
+            for (String algorithm : new String[]{CommonConstant.SHA256, CommonConstant.MD5}) {
+                String hash = FileAttributes.getXattr(algorithm, fullPath);
+                if (hash != null)
+                    register(algorithm, hash, relativePath);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to read xattr of {}", relativePath, e);
+        }
+    }
+
+    /**
+     * 新文件写入完成之后调用，内容已经存在时将新文件替换为已有文件的硬链接
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param fileDigest
+     * @param userMetas
+     * @return 被链接的已有文件，没有去重时返回null
+     * @throws IOException
+     */
+    public static String dedup(ClusterProperties clusterProperties, String relativePath, FileDigest fileDigest, Map<String, String> userMetas) throws IOException {
+        if (fileDigest.getMd5() != null)
+            register(CommonConstant.MD5, fileDigest.getMd5(), relativePath);
+        String key = CommonConstant.SHA256 + ":" + fileDigest.getSha256();
+        String existing = contents.putIfAbsent(key, relativePath);
+        if (existing == null || existing.equals(relativePath))
+            return null;
+        if (find(clusterProperties, CommonConstant.SHA256, fileDigest.getSha256(), fileDigest.getSize()) == null
+                || !isSameMetas(clusterProperties, existing, userMetas)) {
+            //已有文件已被删除或者元数据不同，由新文件代替
+            contents.put(key, relativePath);
+            return null;
+        }
+        if (DiskService.locate(clusterProperties, existing) != DiskService.locate(clusterProperties, relativePath)) {
+            //硬链接不能跨盘
+            return null;
+        }
+        link(clusterProperties, existing, relativePath);
+        logger.debug("{} is deduplicated to {}", relativePath, existing);
+        return existing;
+    }
+
+    /**
+     * 查找当前节点上持有该内容的文件，不会查询组内其他节点
+     *
+     * @param clusterProperties
+     * @param algorithm         sha256或者md5
+     * @param hash              hex格式
+     * @param size
+     * @return 不存在时返回null
+     */
+    public static String find(ClusterProperties clusterProperties, String algorithm, String hash, long size) {
+        String key = algorithm + ":" + hash.toLowerCase();
+        String relativePath = contents.get(key);
+        if (relativePath == null)
+            return null;
+        String fullPath = FileService.getFullPath(clusterProperties, relativePath);
+        try {
+            if (!FileService.runningFile.containsKey(relativePath)
+                    && Files.isRegularFile(Paths.get(fullPath))
+                    //压缩存储的文件大小和原始内容不同，由hash保证一致
+                    && (Files.size(Paths.get(fullPath)) == size || FileAttributes.getXattr(CommonConstant.CODEC, fullPath) != null)
+                    && hash.equalsIgnoreCase(FileAttributes.getXattr(algorithm, fullPath))) {
+                return relativePath;
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to read attributes of {}", relativePath, e);
+        }
+        //文件已被删除或者已被覆盖
+        contents.remove(key, relativePath);
+        return null;
+    }
+
+    /**
+     * 文件的用户元数据是否和userMetas相同
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param userMetas
+     * @return
+     */
+    public static boolean isSameMetas(ClusterProperties clusterProperties, String relativePath, Map<String, String> userMetas) {
+        try {
+            Map<String, String> metas = FileAttributes.getAllXattr(FileService.getFullPath(clusterProperties, relativePath));
+            metas.remove(CommonConstant.CRC32);
+            metas.remove(CommonConstant.SHA256);
+            metas.remove(CommonConstant.MD5);
+            metas.remove(CommonConstant.CODEC);
+            metas.remove(TierService.TIER);
+            return metas.equals(userMetas);
+        } catch (IOException e) {
+            logger.warn("Failed to read xattr of {}", relativePath, e);
+            return false;
+        }
+    }
+
+    /**
+     * 将relativePath替换为target的硬链接，先链接到隐藏的临时文件再rename，不会出现中间状态。新文件会被放到target所在的盘上
+     *
+     * @param clusterProperties
+     * @param target
+     * @param relativePath
+     * @throws IOException
+     */
+    public static void link(ClusterProperties clusterProperties, String target, String relativePath) throws IOException {
+        Disk disk = DiskService.locate(clusterProperties, target);
+        Path link = Paths.get(disk.getPath(), relativePath);
+        Path tmp = link.resolveSibling("." + link.getFileName() + ".link");
+        Files.createDirectories(link.getParent());
+        Files.deleteIfExists(tmp);
+        Files.createLink(tmp, Paths.get(disk.getPath(), target));
+        Files.move(tmp, link, StandardCopyOption.ATOMIC_MOVE);
+        DiskService.assign(clusterProperties, relativePath, disk);
+    }
+
+    /**
+     * 同步时本地已经持有内容相同的文件，直接创建硬链接，不需要从其他节点下载
+     *
+     * @param clusterProperties
+     * @param target
+     * @param relativePath
+     * @return 是否创建成功
+     */
+    public static boolean linkIfPresent(ClusterProperties clusterProperties, String target, String relativePath) {
+        if (!Files.isRegularFile(Paths.get(FileService.getFullPath(clusterProperties, target))) || FileService.runningFile.containsKey(target))
+            return false;
+        if (FileService.runningFile.putIfAbsent(relativePath, new Date().getTime()) != null)
+            return false;
+        try {
+            link(clusterProperties, target, relativePath);
+            register(clusterProperties, relativePath);
+            logger.debug("Success to link {} to {}", relativePath, target);
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to link {} to {}", relativePath, target, e);
+            return false;
+        } finally {
+            FileService.runningFile.remove(relativePath);
+        }
+    }
+}
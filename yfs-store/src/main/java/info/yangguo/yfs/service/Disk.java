@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 一块数据盘，即yfs.store.filedata.dir中的一个目录
+ */
+public class Disk {
+    /**
+     * 写入耗时EWMA的平滑系数
+     */
+    private static final double ALPHA = 0.2;
+    @Getter
+    private final String path;
+    /**
+     * 最近写入耗时的EWMA，单位毫秒
+     */
+    private volatile double latency = 0;
+    @Getter
+    private final IoScheduler scheduler;
+    /**
+     * 是否为热数据层(SSD)，新文件优先写入热数据层，冷却之后迁移到容量层
+     */
+    @Getter
+    private final boolean hot;
+
+    public Disk(String path, boolean hot, int concurrency, int maxWaiters) {
+        this.path = path;
+        this.hot = hot;
+        this.scheduler = new IoScheduler(concurrency, maxWaiters);
+    }
+
+    public long getFreeSpace() {
+        return new File(path).getUsableSpace();
+    }
+
+    /**
+     * 磁盘使用率，百分比
+     */
+    public double getUsage() {
+        File file = new File(path);
+        long total = file.getTotalSpace();
+        return total <= 0 ? 100 : 100.0 * (total - file.getUsableSpace()) / total;
+    }
+
+    public double getLatency() {
+        return latency;
+    }
+
+    public synchronized void updateLatency(long millis) {
+        latency = ALPHA * millis + (1 - ALPHA) * latency;
+    }
+
+    /**
+     * 打开文件的输入流，每次读取都需要先获取该盘的IO许可
+     *
+     * @param path
+     * @param priority
+     * @return
+     * @throws IOException
+     */
+    public InputStream newInputStream(Path path, IoScheduler.Priority priority) throws IOException {
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                try (IoScheduler.Permit permit = scheduler.acquire(priority)) {
+                    return fileChannel.read(ByteBuffer.wrap(b, off, len));
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                fileChannel.close();
+            }
+        };
+    }
+
+    /**
+     * 打开文件的输出流(覆盖写)，每次写入都需要先获取该盘的IO许可
+     *
+     * @param path
+     * @param priority
+     * @return
+     * @throws IOException
+     */
+    public OutputStream newOutputStream(Path path, IoScheduler.Priority priority) throws IOException {
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(b, off, len);
+                try (IoScheduler.Permit permit = scheduler.acquire(priority)) {
+                    while (byteBuffer.hasRemaining()) {
+                        fileChannel.write(byteBuffer);
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                fileChannel.close();
+            }
+        };
+    }
+}
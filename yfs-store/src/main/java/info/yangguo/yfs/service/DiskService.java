@@ -0,0 +1,222 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import info.yangguo.yfs.config.ClusterProperties;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * JBOD多盘管理：yfs.store.filedata.dir可以配置多个以逗号分隔的目录，每个目录对应一块盘。
+ * 新文件按照剩余空间和最近写入耗时加权随机选择一块盘，写入完成之后记录下来；已有文件通过逐盘探测定位，定位结果缓存在内存中。
+ * .upload、.volume、.shard等隐藏目录放在第一块容量层的盘上，已经存在于其他盘的沿用原来的位置。
+ * 配置了yfs.store.tier.hot_dir时，热数据层的盘排在前面，新文件只在热数据层中选择，使用率达到yfs.store.tier.high_water之后写入容量层。
+ */
+public class DiskService {
+    private static Logger logger = LoggerFactory.getLogger(DiskService.class);
+    private static volatile List<Disk> disks;
+    private static final Cache<String, Disk> locations = CacheBuilder.newBuilder().maximumSize(100000).build();
+
+    /**
+     * 获取所有数据盘
+     *
+     * @param clusterProperties
+     * @return
+     */
+    public static List<Disk> getDisks(ClusterProperties clusterProperties) {
+        if (disks == null) {
+            synchronized (DiskService.class) {
+                if (disks == null) {
+                    ClusterProperties.Io io = clusterProperties.getStore().getIo();
+                    int concurrency = io == null ? 0 : io.getConcurrency();
+                    int maxWaiters = io == null ? 0 : io.getMax_waiters();
+                    ClusterProperties.Tier tier = clusterProperties.getStore().getTier();
+                    List<Disk> list = new ArrayList<>();
+                    if (tier != null && tier.getHot_dir() != null)
+                        list.addAll(toDisks(tier.getHot_dir(), true, concurrency, maxWaiters));
+                    list.addAll(toDisks(clusterProperties.getStore().getFiledata().getDir(), false, concurrency, maxWaiters));
+                    disks = Collections.unmodifiableList(list);
+                    //不存在的目录无法获取剩余空间
+                    disks.forEach(disk -> new File(disk.getPath()).mkdirs());
+                    logger.info("Data disks:{}", disks.stream().map(disk -> disk.getPath() + (disk.isHot() ? "(hot)" : "")).collect(Collectors.toList()));
+                }
+            }
+        }
+        return disks;
+    }
+
+    private static List<Disk> toDisks(String dirs, boolean hot, int concurrency, int maxWaiters) {
+        return Arrays.stream(dirs.split(","))
+                .map(String::trim)
+                .filter(dir -> !dir.isEmpty())
+                .map(dir -> new Disk(dir.startsWith(File.separator) ? dir : FileUtils.getUserDirectoryPath() + File.separator + dir, hot, concurrency, maxWaiters))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 定位文件所在的盘
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @return 文件不存在时返回第一块盘，结果不缓存
+     */
+    public static Disk locate(ClusterProperties clusterProperties, String relativePath) {
+        List<Disk> disks = getDisks(clusterProperties);
+        if (disks.size() == 1 || relativePath.isEmpty())
+            return disks.get(0);
+        if (relativePath.startsWith("."))
+            return getSystemDisk(disks, relativePath);
+        Disk disk = find(disks, relativePath);
+        return disk != null ? disk : disks.get(0);
+    }
+
+    /**
+     * 隐藏目录所在的盘，整个目录在同一块盘上，目录中的文件rename到数据目录时不会跨盘
+     *
+     * @param disks
+     * @param relativePath
+     * @return 目录已经存在时返回所在的盘，否则返回第一块容量层的盘
+     */
+    private static Disk getSystemDisk(List<Disk> disks, String relativePath) {
+        int index = relativePath.indexOf(File.separator);
+        Disk disk = find(disks, index < 0 ? relativePath : relativePath.substring(0, index));
+        if (disk != null)
+            return disk;
+        return disks.stream().filter(d -> !d.isHot()).findFirst().orElse(disks.get(0));
+    }
+
+    /**
+     * 为写入选择一块盘，文件已经存在时返回所在的盘。写入过程中使用返回的盘拼接路径，完成之后调用assign记录
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @return
+     */
+    public static Disk allocate(ClusterProperties clusterProperties, String relativePath) {
+        List<Disk> disks = getDisks(clusterProperties);
+        if (disks.size() == 1)
+            return disks.get(0);
+        Disk disk = find(disks, relativePath);
+        return disk != null ? disk : choose(getCandidates(clusterProperties, disks));
+    }
+
+    private static Disk find(List<Disk> disks, String relativePath) {
+        Disk disk = locations.getIfPresent(relativePath);
+        if (disk == null) {
+            disk = disks.stream()
+                    .filter(d -> new File(d.getPath(), relativePath).exists())
+                    .findFirst()
+                    .orElse(null);
+            //只缓存存在的文件
+            if (disk != null)
+                locations.put(relativePath, disk);
+        }
+        return disk;
+    }
+
+    /**
+     * 记录文件所在的盘，在文件写入完成之后调用；硬链接及rename要求新文件和源文件在同一块盘上
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param disk
+     */
+    public static void assign(ClusterProperties clusterProperties, String relativePath, Disk disk) {
+        if (getDisks(clusterProperties).size() > 1)
+            locations.put(relativePath, disk);
+    }
+
+    /**
+     * 获取文件所在盘的一次IO许可
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param priority
+     * @return
+     * @throws IOException
+     */
+    public static IoScheduler.Permit acquire(ClusterProperties clusterProperties, String relativePath, IoScheduler.Priority priority) throws IOException {
+        return locate(clusterProperties, relativePath).getScheduler().acquire(priority);
+    }
+
+    /**
+     * 根据绝对路径找到对应的盘
+     *
+     * @param clusterProperties
+     * @param absolutePath
+     * @return 不在任何数据盘上时返回null
+     */
+    public static Disk getDisk(ClusterProperties clusterProperties, String absolutePath) {
+        return getDisks(clusterProperties).stream()
+                .filter(disk -> absolutePath.startsWith(disk.getPath() + File.separator) || absolutePath.equals(disk.getPath()))
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * 新文件可以写入的盘，使用率低于yfs.store.tier.high_water的热数据层优先，没有配置时直到写满
+     *
+     * @param clusterProperties
+     * @param disks
+     * @return
+     */
+    private static List<Disk> getCandidates(ClusterProperties clusterProperties, List<Disk> disks) {
+        ClusterProperties.Tier tier = clusterProperties.getStore().getTier();
+        int highWater = tier == null || tier.getHigh_water() <= 0 ? 100 : tier.getHigh_water();
+        List<Disk> hotDisks = disks.stream().filter(disk -> disk.isHot() && disk.getFreeSpace() > 0 && disk.getUsage() < highWater).collect(Collectors.toList());
+        if (!hotDisks.isEmpty())
+            return hotDisks;
+        List<Disk> coldDisks = disks.stream().filter(disk -> !disk.isHot()).collect(Collectors.toList());
+        return coldDisks.isEmpty() ? disks : coldDisks;
+    }
+
+    /**
+     * 剩余空间越大、最近写入越快的盘被选中的概率越大
+     *
+     * @param disks
+     * @return
+     */
+    private static Disk choose(List<Disk> disks) {
+        double[] weights = new double[disks.size()];
+        double total = 0;
+        for (int i = 0; i < disks.size(); i++) {
+            Disk disk = disks.get(i);
+            weights[i] = disk.getFreeSpace() / (1 + disk.getLatency());
+            total += weights[i];
+        }
+        if (total <= 0)
+            return disks.get(0);
+        double random = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < disks.size(); i++) {
+            random -= weights[i];
+            if (random < 0)
+                return disks.get(i);
+        }
+        return disks.get(disks.size() - 1);
+    }
+}
@@ -0,0 +1,605 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import info.yangguo.yfs.common.CommonConstant;
+import info.yangguo.yfs.common.po.ErasureCode;
+import info.yangguo.yfs.common.po.FileEvent;
+import info.yangguo.yfs.config.ClusterProperties;
+import info.yangguo.yfs.util.ReedSolomon;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import org.apache.catalina.connector.ClientAbortException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.apache.tika.metadata.Metadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * 纠删码存储：上传节点把文件编码成k+m个shard，每个shard只保存在一个节点上，任意k个shard都可以恢复文件。
+ * shard保存在.shard目录中，其他节点通过api/shard拉取分配给自己的shard，所有节点都拉取完成之后上传节点删除多余的shard。
+ */
+public class ErasureCodeService {
+    private static Logger logger = LoggerFactory.getLogger(ErasureCodeService.class);
+    public static final String SHARD_DIR = ".shard";
+    public static final String STORAGE_CLASS = "ec";
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * 上传时是否要求使用纠删码
+     *
+     * @param clusterProperties
+     * @param storageClass      x-yfs-storage-class的值
+     * @return
+     */
+    public static boolean isRequested(ClusterProperties clusterProperties, String storageClass) {
+        ClusterProperties.Ec ec = clusterProperties.getStore().getEc();
+        return ec != null && ec.isEnable() && STORAGE_CLASS.equalsIgnoreCase(storageClass == null ? null : storageClass.trim());
+    }
+
+    /**
+     * 文件是否可以使用纠删码存储，小文件及节点数不足时仍然使用全副本
+     *
+     * @param clusterProperties
+     * @param storageClass
+     * @param size
+     * @return
+     */
+    public static boolean accept(ClusterProperties clusterProperties, String storageClass, long size) {
+        if (!isRequested(clusterProperties, storageClass))
+            return false;
+        ClusterProperties.Ec ec = clusterProperties.getStore().getEc();
+        return size > 0 && size >= ec.getMin_size()
+                && ec.getData_shards() > 0 && ec.getParity_shards() > 0
+                && clusterProperties.getStore().getNode().size() >= ec.getData_shards() + ec.getParity_shards();
+    }
+
+    /**
+     * 创建边写边编码的Encoder，上传时文件大小已知的情况下不需要再从磁盘读回原文件
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param size              文件大小
+     * @return
+     * @throws IOException
+     */
+    public static Encoder newEncoder(ClusterProperties clusterProperties, String relativePath, long size) throws IOException {
+        return new Encoder(clusterProperties, relativePath, size);
+    }
+
+    /**
+     * 将本地文件编码为全部shard，完成之后删除原文件。只用于上传时文件大小未知的情况
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param metas             原始文件的元数据
+     * @return
+     * @throws IOException
+     */
+    public static ErasureCode encode(ClusterProperties clusterProperties, String relativePath, Map<String, String> metas) throws IOException {
+        String fullPath = FileService.getFullPath(clusterProperties, relativePath);
+        Disk disk = DiskService.locate(clusterProperties, relativePath);
+        Encoder encoder = new Encoder(clusterProperties, relativePath, new File(fullPath).length());
+        try (InputStream inputStream = disk.newInputStream(Paths.get(fullPath), IoScheduler.Priority.USER_WRITE)) {
+            copy(inputStream, encoder);
+        } catch (IOException | RuntimeException e) {
+            encoder.abort();
+            throw e;
+        }
+        return encoder.finish(metas);
+    }
+
+    /**
+     * 当前节点应该持有的数据是否都已经存在
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param fileEvent
+     * @return
+     */
+    public static boolean exists(ClusterProperties clusterProperties, String relativePath, FileEvent fileEvent) {
+        ErasureCode erasureCode = fileEvent.getErasureCode();
+        if (erasureCode == null)
+            return FileService.exists(clusterProperties, relativePath);
+        for (int i = 0; i < erasureCode.getNodes().size(); i++) {
+            if (erasureCode.getNodes().get(i).equals(clusterProperties.getLocal())
+                    && !new File(getShardPath(clusterProperties, relativePath, i)).exists())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 获取分配给当前节点的shard，优先从其他节点拉取，都拉取不到时由其他k个shard重建
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param fileEvent
+     * @return 当前节点的shard是否都已经存在
+     */
+    public static boolean sync(ClusterProperties clusterProperties, String relativePath, FileEvent fileEvent) {
+        ErasureCode erasureCode = fileEvent.getErasureCode();
+        boolean result = true;
+        for (int i = 0; i < erasureCode.getNodes().size(); i++) {
+            if (!erasureCode.getNodes().get(i).equals(clusterProperties.getLocal())
+                    || new File(getShardPath(clusterProperties, relativePath, i)).exists())
+                continue;
+            boolean success = false;
+            for (String node : fileEvent.getAddNodes()) {
+                if (node.equals(clusterProperties.getLocal()))
+                    continue;
+                try {
+                    download(clusterProperties, relativePath, i, node);
+                    success = true;
+                    break;
+                } catch (Exception e) {
+                    logger.warn("Failed to get shard {} of {} from {}", i, relativePath, node, e);
+                }
+            }
+            if (!success) {
+                try {
+                    reconstruct(clusterProperties, relativePath, erasureCode, i);
+                    success = true;
+                } catch (Exception e) {
+                    logger.warn("Failed to reconstruct shard {} of {}", i, relativePath, e);
+                }
+            }
+            result = result && success;
+        }
+        return result;
+    }
+
+    /**
+     * 所有节点都已经持有各自的shard之后，删除当前节点上不属于自己的shard，即上传节点编码时生成的其他shard
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param fileEvent
+     */
+    public static void trim(ClusterProperties clusterProperties, String relativePath, FileEvent fileEvent) {
+        ErasureCode erasureCode = fileEvent.getErasureCode();
+        if (erasureCode == null || !fileEvent.getRemoveNodes().isEmpty() || !fileEvent.getAddNodes().containsAll(erasureCode.getNodes()))
+            return;
+        for (int i = 0; i < erasureCode.getNodes().size(); i++) {
+            if (!erasureCode.getNodes().get(i).equals(clusterProperties.getLocal())) {
+                File shard = new File(getShardPath(clusterProperties, relativePath, i));
+                if (shard.exists() && shard.delete())
+                    logger.debug("Shard {} of {} is trimmed", i, relativePath);
+            }
+        }
+    }
+
+    /**
+     * 删除当前节点上该文件的所有shard，shard的数量由元数据决定，不需要扫描目录
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param erasureCode
+     */
+    public static void delete(ClusterProperties clusterProperties, String relativePath, ErasureCode erasureCode) {
+        for (int i = 0; i < erasureCode.getDataShards() + erasureCode.getParityShards(); i++) {
+            File shard = new File(getShardPath(clusterProperties, relativePath, i));
+            if (shard.exists())
+                shard.delete();
+        }
+    }
+
+    /**
+     * 将当前节点上的shard写入response，供其他节点拉取
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param index
+     * @param response
+     * @throws IOException
+     */
+    public static void getShard(ClusterProperties clusterProperties, String relativePath, int index, HttpServletResponse response) throws IOException {
+        String shardPath = getShardPath(clusterProperties, relativePath, index);
+        if (!new File(shardPath).exists()) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            response.setHeader(Metadata.CONTENT_LENGTH, "0");
+            return;
+        }
+        response.setStatus(HttpStatus.OK.value());
+        response.setHeader(CommonConstant.CRC32, FileAttributes.getXattr(CommonConstant.CRC32, shardPath));
+        response.setHeader(Metadata.CONTENT_LENGTH, String.valueOf(new File(shardPath).length()));
+        Disk disk = DiskService.locate(clusterProperties, SHARD_DIR);
+        try (InputStream inputStream = disk.newInputStream(Paths.get(shardPath), IoScheduler.Priority.REPLICATION)) {
+            copy(inputStream, response.getOutputStream());
+            response.flushBuffer();
+        }
+    }
+
+    /**
+     * 读取纠删码存储的文件，优先读取数据shard，不足k个时使用校验shard恢复
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param fileEvent
+     * @param response
+     * @throws IOException
+     */
+    public static void getFile(ClusterProperties clusterProperties, String relativePath, FileEvent fileEvent, HttpServletResponse response) throws IOException {
+        ErasureCode erasureCode = fileEvent.getErasureCode();
+        InputStream[] inputs = open(clusterProperties, relativePath, erasureCode, -1, IoScheduler.Priority.USER_READ);
+        try {
+            erasureCode.getMetas().forEach(response::setHeader);
+            //各个shard按照stripe交错读取，不支持范围请求
+            response.setHeader(HttpHeaderNames.ACCEPT_RANGES.toString(), "none");
+            response.setHeader(Metadata.CONTENT_LENGTH, String.valueOf(erasureCode.getSize()));
+            response.setStatus(HttpStatus.OK.value());
+            OutputStream outputStream = response.getOutputStream();
+            CRC32 crc32 = new CRC32();
+            String expect = erasureCode.getMetas().get(CommonConstant.CRC32);
+            long[] remaining = {erasureCode.getSize()};
+            decode(erasureCode, inputs, false, shards -> {
+                int[] lengths = new int[erasureCode.getDataShards()];
+                for (int i = 0; i < lengths.length && remaining[0] > 0; i++) {
+                    lengths[i] = (int) Math.min(remaining[0], erasureCode.getBlockSize());
+                    crc32.update(shards[i], 0, lengths[i]);
+                    remaining[0] -= lengths[i];
+                }
+                //最后一个stripe在校验通过之后才写出，不匹配时客户端收到的数据不完整，而不是错误的完整文件
+                if (remaining[0] == 0 && expect != null && !expect.equals(String.valueOf(crc32.getValue()))) {
+                    if (!response.isCommitted())
+                        response.resetBuffer();
+                    throw new IOException("Decoded " + relativePath + "'s crc32 doesn't match");
+                }
+                for (int i = 0; i < lengths.length; i++) {
+                    outputStream.write(shards[i], 0, lengths[i]);
+                }
+            });
+            response.flushBuffer();
+        } catch (ClientAbortException e) {
+            logger.warn("Download {} is failing beacause client abort!", relativePath);
+        } finally {
+            close(inputs);
+        }
+    }
+
+    /**
+     * 从其他k个shard重建指定的shard
+     */
+    private static void reconstruct(ClusterProperties clusterProperties, String relativePath, ErasureCode erasureCode, int index) throws IOException {
+        InputStream[] inputs = open(clusterProperties, relativePath, erasureCode, index, IoScheduler.Priority.REPLICATION);
+        Path shard = Paths.get(getShardPath(clusterProperties, relativePath, index));
+        Path tmp = shard.resolveSibling("." + shard.getFileName() + ".tmp");
+        Files.createDirectories(shard.getParent());
+        CRC32 crc32 = new CRC32();
+        try (OutputStream outputStream = DiskService.locate(clusterProperties, SHARD_DIR).newOutputStream(tmp, IoScheduler.Priority.REPLICATION)) {
+            decode(erasureCode, inputs, index >= erasureCode.getDataShards(), shards -> {
+                outputStream.write(shards[index], 0, erasureCode.getBlockSize());
+                crc32.update(shards[index], 0, erasureCode.getBlockSize());
+            });
+        } finally {
+            close(inputs);
+        }
+        FileAttributes.setXattr(Collections.singletonMap(CommonConstant.CRC32, String.valueOf(crc32.getValue())), tmp.toString());
+        GroupCommitService.commit(clusterProperties, tmp, shard);
+        logger.info("Shard {} of {} is reconstructed", index, relativePath);
+    }
+
+    /**
+     * 从其他节点下载shard并校验crc32
+     */
+    private static void download(ClusterProperties clusterProperties, String relativePath, int index, String nodeId) throws IOException {
+        ClusterProperties.ClusterNode node = getNode(clusterProperties, nodeId);
+        HttpGet request = new HttpGet("http://" + node.getIp() + ":" + node.getHttp_port() + "/api/shard/" + index + "/" + relativePath);
+        HttpResponse response = FileService.httpClient.execute(request);
+        try {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.OK.value())
+                throw new IOException("Shard " + index + " of " + relativePath + " is not found in " + nodeId);
+            Path shard = Paths.get(getShardPath(clusterProperties, relativePath, index));
+            Path tmp = shard.resolveSibling("." + shard.getFileName() + ".tmp");
+            Files.createDirectories(shard.getParent());
+            CRC32 crc32 = new CRC32();
+            try (InputStream inputStream = response.getEntity().getContent();
+                 OutputStream outputStream = DiskService.locate(clusterProperties, SHARD_DIR).newOutputStream(tmp, IoScheduler.Priority.REPLICATION)) {
+                byte[] buff = BufferPool.acquire();
+                try {
+                    int length;
+                    while ((length = inputStream.read(buff)) != -1) {
+                        crc32.update(buff, 0, length);
+                        outputStream.write(buff, 0, length);
+                    }
+                } finally {
+                    BufferPool.release(buff);
+                }
+            }
+            String expect = response.getFirstHeader(CommonConstant.CRC32) == null ? null : response.getFirstHeader(CommonConstant.CRC32).getValue();
+            if (expect == null || !expect.equals(String.valueOf(crc32.getValue()))) {
+                Files.deleteIfExists(tmp);
+                throw new IOException("Shard " + index + " of " + relativePath + "'s crc32 doesn't match");
+            }
+            FileAttributes.setXattr(Collections.singletonMap(CommonConstant.CRC32, expect), tmp.toString());
+            GroupCommitService.commit(clusterProperties, tmp, shard);
+            logger.debug("Success to get shard {} of {} from {}", index, relativePath, nodeId);
+        } finally {
+            EntityUtils.consumeQuietly(response.getEntity());
+        }
+    }
+
+    /**
+     * 打开k个可用的shard，优先本地及数据shard
+     *
+     * @param exclude 不需要打开的shard，-1表示没有
+     * @return 长度为k+m，没有打开的为null
+     */
+    private static InputStream[] open(ClusterProperties clusterProperties, String relativePath, ErasureCode erasureCode, int exclude, IoScheduler.Priority priority) throws IOException {
+        int total = erasureCode.getDataShards() + erasureCode.getParityShards();
+        InputStream[] inputs = new InputStream[total];
+        int opened = 0;
+        for (int i = 0; i < total && opened < erasureCode.getDataShards(); i++) {
+            if (i == exclude)
+                continue;
+            try {
+                inputs[i] = openShard(clusterProperties, relativePath, erasureCode, i, priority);
+                opened++;
+            } catch (IOException e) {
+                logger.warn("Shard {} of {} is unavailable", i, relativePath, e);
+            }
+        }
+        if (opened < erasureCode.getDataShards()) {
+            close(inputs);
+            throw new IOException("Only " + opened + " shards of " + relativePath + " are available");
+        }
+        return inputs;
+    }
+
+    private static InputStream openShard(ClusterProperties clusterProperties, String relativePath, ErasureCode erasureCode, int index, IoScheduler.Priority priority) throws IOException {
+        String shardPath = getShardPath(clusterProperties, relativePath, index);
+        if (new File(shardPath).exists())
+            return DiskService.locate(clusterProperties, SHARD_DIR).newInputStream(Paths.get(shardPath), priority);
+        String nodeId = erasureCode.getNodes().get(index);
+        if (nodeId.equals(clusterProperties.getLocal()))
+            throw new IOException("Shard " + index + " of " + relativePath + " is lost");
+        ClusterProperties.ClusterNode node = getNode(clusterProperties, nodeId);
+        HttpResponse response = FileService.httpClient.execute(new HttpGet("http://" + node.getIp() + ":" + node.getHttp_port() + "/api/shard/" + index + "/" + relativePath));
+        if (response.getStatusLine().getStatusCode() != HttpStatus.OK.value()) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            throw new IOException("Shard " + index + " of " + relativePath + " is not found in " + nodeId);
+        }
+        return response.getEntity().getContent();
+    }
+
+    /**
+     * 按照stripe依次读取各个shard的block，恢复缺失的block之后交给consumer
+     *
+     * @param parity 是否需要校验block，不需要时数据shard完整就不用计算
+     */
+    private static void decode(ErasureCode erasureCode, InputStream[] inputs, boolean parity, StripeConsumer consumer) throws IOException {
+        int blockSize = erasureCode.getBlockSize();
+        ReedSolomon reedSolomon = new ReedSolomon(erasureCode.getDataShards(), erasureCode.getParityShards());
+        byte[][] shards = new byte[inputs.length][blockSize];
+        boolean[] present = new boolean[inputs.length];
+        boolean complete = true;
+        for (int i = 0; i < inputs.length; i++) {
+            present[i] = inputs[i] != null;
+            if (i < erasureCode.getDataShards())
+                complete = complete && present[i];
+        }
+        for (long stripe = 0; stripe < getStripes(erasureCode); stripe++) {
+            for (int i = 0; i < inputs.length; i++) {
+                if (present[i])
+                    IOUtils.readFully(inputs[i], shards[i], 0, blockSize);
+            }
+            if (!complete)
+                reedSolomon.decode(shards, present, 0, blockSize);
+            else if (parity)
+                reedSolomon.encode(shards, 0, blockSize);
+            consumer.accept(shards);
+        }
+    }
+
+    private static long getStripes(ErasureCode erasureCode) {
+        long stripeSize = (long) erasureCode.getDataShards() * erasureCode.getBlockSize();
+        return Math.max(1, (erasureCode.getSize() + stripeSize - 1) / stripeSize);
+    }
+
+    /**
+     * 从当前节点开始，其余节点按照文件路径打散，避免shard集中在少数节点上
+     */
+    private static List<String> assignNodes(ClusterProperties clusterProperties, String relativePath, int count) {
+        List<String> others = clusterProperties.getStore().getNode().stream()
+                .map(ClusterProperties.ClusterNode::getId)
+                .filter(id -> !id.equals(clusterProperties.getLocal()))
+                .collect(Collectors.toList());
+        Collections.shuffle(others, new Random(relativePath.hashCode()));
+        List<String> nodes = new ArrayList<>();
+        nodes.add(clusterProperties.getLocal());
+        nodes.addAll(others.subList(0, count - 1));
+        return nodes;
+    }
+
+    private static ClusterProperties.ClusterNode getNode(ClusterProperties clusterProperties, String nodeId) throws IOException {
+        return clusterProperties.getStore().getNode().stream()
+                .filter(node -> node.getId().equals(nodeId))
+                .findFirst()
+                .orElseThrow(() -> new IOException("Unknown node " + nodeId));
+    }
+
+    private static String getShardPath(ClusterProperties clusterProperties, String relativePath, int index) {
+        return FileService.getFullPath(clusterProperties, SHARD_DIR + File.separator + relativePath + "." + index);
+    }
+
+    private static void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buff = BufferPool.acquire();
+        try {
+            IOUtils.copyLarge(inputStream, outputStream, buff);
+        } finally {
+            BufferPool.release(buff);
+        }
+    }
+
+    private static void close(InputStream[] inputs) {
+        for (InputStream inputStream : inputs) {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * 边写边编码：数据按照stripe缓存，凑满k个block之后编码并写入各个shard
+     */
+    public static class Encoder extends OutputStream {
+        private final ClusterProperties clusterProperties;
+        private final String relativePath;
+        private final ErasureCode erasureCode;
+        private final ReedSolomon reedSolomon;
+        private final byte[][] shards;
+        private final OutputStream[] outputs;
+        private final CRC32[] crc32s;
+        private final Path[] paths;
+        //当前stripe中正在写入的数据shard及其block中的位置
+        private int shard;
+        private int position;
+        private long written;
+
+        private Encoder(ClusterProperties clusterProperties, String relativePath, long size) throws IOException {
+            int k = clusterProperties.getStore().getEc().getData_shards();
+            int m = clusterProperties.getStore().getEc().getParity_shards();
+            this.clusterProperties = clusterProperties;
+            this.relativePath = relativePath;
+            this.erasureCode = new ErasureCode();
+            erasureCode.setDataShards(k);
+            erasureCode.setParityShards(m);
+            erasureCode.setSize(size);
+            //小文件的block不需要补齐到BLOCK_SIZE
+            erasureCode.setBlockSize((int) Math.max(1, Math.min(BLOCK_SIZE, (size + k - 1) / k)));
+            erasureCode.setNodes(assignNodes(clusterProperties, relativePath, k + m));
+            this.reedSolomon = new ReedSolomon(k, m);
+            this.shards = new byte[k + m][erasureCode.getBlockSize()];
+            this.outputs = new OutputStream[k + m];
+            this.crc32s = new CRC32[k + m];
+            this.paths = new Path[k + m];
+            Disk shardDisk = DiskService.locate(clusterProperties, SHARD_DIR);
+            try {
+                for (int i = 0; i < k + m; i++) {
+                    paths[i] = Paths.get(getShardPath(clusterProperties, relativePath, i));
+                    Files.createDirectories(paths[i].getParent());
+                    outputs[i] = shardDisk.newOutputStream(paths[i], IoScheduler.Priority.USER_WRITE);
+                    crc32s[i] = new CRC32();
+                }
+            } catch (IOException | RuntimeException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            written += len;
+            if (written > erasureCode.getSize())
+                throw new IOException(relativePath + " is larger than " + erasureCode.getSize() + " bytes");
+            int blockSize = erasureCode.getBlockSize();
+            while (len > 0) {
+                int length = Math.min(len, blockSize - position);
+                System.arraycopy(b, off, shards[shard], position, length);
+                position += length;
+                off += length;
+                len -= length;
+                if (position == blockSize) {
+                    position = 0;
+                    if (++shard == erasureCode.getDataShards())
+                        encodeStripe();
+                }
+            }
+        }
+
+        /**
+         * 编码最后一个stripe并落盘，完成之后删除原文件
+         *
+         * @param metas 原始文件的元数据
+         * @return
+         * @throws IOException
+         */
+        public ErasureCode finish(Map<String, String> metas) throws IOException {
+            try {
+                if (written != erasureCode.getSize())
+                    throw new IOException(relativePath + " is incomplete, expect " + erasureCode.getSize() + " bytes but " + written);
+                if (shard > 0 || position > 0)
+                    encodeStripe();
+                for (OutputStream outputStream : outputs) {
+                    outputStream.close();
+                }
+                for (int i = 0; i < paths.length; i++) {
+                    FileAttributes.setXattr(Collections.singletonMap(CommonConstant.CRC32, String.valueOf(crc32s[i].getValue())), paths[i].toString());
+                }
+                GroupCommitService.sync(clusterProperties, paths);
+            } catch (IOException | RuntimeException e) {
+                abort();
+                throw e;
+            }
+            Files.deleteIfExists(Paths.get(FileService.getFullPath(clusterProperties, relativePath)));
+            erasureCode.setMetas(new HashMap<>(metas));
+            logger.debug("{} is encoded to {}+{} shards", relativePath, erasureCode.getDataShards(), erasureCode.getParityShards());
+            return erasureCode;
+        }
+
+        /**
+         * 放弃编码并删除已经写入的shard
+         */
+        public void abort() {
+            for (int i = 0; i < paths.length; i++) {
+                IOUtils.closeQuietly(outputs[i]);
+                if (paths[i] != null)
+                    FileUtils.deleteQuietly(paths[i].toFile());
+            }
+        }
+
+        /**
+         * 剩余的数据block补0之后计算校验block，一起写入各个shard
+         */
+        private void encodeStripe() throws IOException {
+            int blockSize = erasureCode.getBlockSize();
+            for (int i = shard; i < erasureCode.getDataShards(); i++) {
+                Arrays.fill(shards[i], i == shard ? position : 0, blockSize, (byte) 0);
+            }
+            reedSolomon.encode(shards, 0, blockSize);
+            for (int i = 0; i < shards.length; i++) {
+                outputs[i].write(shards[i], 0, blockSize);
+                crc32s[i].update(shards[i], 0, blockSize);
+            }
+            shard = 0;
+            position = 0;
+        }
+    }
+
+    @FunctionalInterface
+    private interface StripeConsumer {
+        void accept(byte[][] shards) throws IOException;
+    }
+}
@@ -19,33 +19,200 @@ import info.yangguo.yfs.common.po.FileEvent;
 import info.yangguo.yfs.config.ClusterProperties;
 import info.yangguo.yfs.config.YfsConfig;
 import io.atomix.utils.time.Versioned;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 public class EventService {
     private static Logger LOGGER = LoggerFactory.getLogger(EventService.class);
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "qos-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    public static boolean create(ClusterProperties clusterProperties, YfsConfig yfsConfig, Pair<String, FileEvent> pair, int qos) {
-        boolean result = false;
-        pair.getValue().getAddNodes().add(clusterProperties.getLocal());
-        CountDownLatch countDownLatch = new CountDownLatch(qos);
-        try {
-            yfsConfig.cache.put(pair.getKey(), countDownLatch);
-            yfsConfig.fileEventMap.putIfAbsent(pair.getKey(), pair.getValue());
-            LOGGER.debug("Success to create event of {}", pair.getKey());
-            //Preventing network traffic from failing
-            countDownLatch.countDown();
-            result = countDownLatch.await(clusterProperties.getStore().getQos_max_time(), TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            LOGGER.warn("Qos of {} is fail!", pair.getKey());
-        } finally {
-            yfsConfig.cache.invalidate(pair.getKey());
+    /**
+     * 上传请求的持久性级别，决定返回之前需要等待多少个副本
+     */
+    public enum Durability {
+        ASYNC, LOCAL, MAJORITY, ALL;
+
+        /**
+         * @param value header中的值，为空或者不合法时使用默认值
+         * @param defaultValue
+         * @return
+         */
+        public static Durability parse(String value, String defaultValue) {
+            for (String tmp : new String[]{value, defaultValue}) {
+                if (StringUtils.isNotBlank(tmp)) {
+                    try {
+                        return valueOf(tmp.trim().toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        LOGGER.warn("Unknown durability {}", tmp);
+                    }
+                }
+            }
+            return MAJORITY;
         }
-        return result;
+
+        /**
+         * 是否需要等待其他节点的确认
+         */
+        public boolean isRemote() {
+            return this == MAJORITY || this == ALL;
+        }
+    }
+
+    /**
+     * 等待副本节点的确认，由fileEventMap的listener调用countDown，计数减到0时完成。
+     * 完成或者超时之后仍然保留到yfs.store.qos_max_time，迟到的确认同样记录复制耗时
+     */
+    public static class Acknowledgment {
+        private final AtomicInteger count;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private final long startTime = System.currentTimeMillis();
+        /**
+         * 每个副本节点需要复制的字节数
+         */
+        private final long size;
+        /**
+         * 还没有确认的副本节点
+         */
+        private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+        public Acknowledgment(int count, long size, Collection<String> peers) {
+            this.count = new AtomicInteger(count);
+            this.size = size;
+            this.pending.addAll(peers);
+        }
+
+        public void countDown() {
+            if (count.decrementAndGet() <= 0)
+                future.complete(true);
+        }
+
+        /**
+         * 副本节点确认，同时记录该节点的复制耗时
+         *
+         * @param node
+         */
+        public void countDown(String node) {
+            if (pending.remove(node))
+                ReplicationStats.record(node, size, System.currentTimeMillis() - startTime);
+            countDown();
+        }
+
+        /**
+         * 不再等待确认，没有确认的节点以已经等待的时间作为样本，避免复制卡住的节点一直保持之前较低的估算值
+         */
+        public void expire() {
+            long millis = System.currentTimeMillis() - startTime;
+            for (String node : pending) {
+                if (pending.remove(node))
+                    ReplicationStats.record(node, size, millis);
+            }
+        }
+    }
+
+    /**
+     * 创建文件元数据，按照持久性级别等待副本节点同步，不占用调用线程
+     *
+     * @param clusterProperties
+     * @param yfsConfig
+     * @param pair
+     * @param durability
+     * @return 超时未达到持久性级别时为false，元数据写入失败时异常结束
+     */
+    public static CompletableFuture<Boolean> create(ClusterProperties clusterProperties, YfsConfig yfsConfig, Pair<String, FileEvent> pair, Durability durability) {
+        //链式复制时addNodes中已经有上传节点和确认的副本节点
+        if (!pair.getValue().getAddNodes().contains(clusterProperties.getLocal()))
+            pair.getValue().getAddNodes().add(clusterProperties.getLocal());
+        if (pair.getValue().getErasureCode() != null)
+            pair.getValue().setSize(pair.getValue().getErasureCode().getSize());
+        else
+            pair.getValue().setSize(FileService.size(clusterProperties, pair.getKey()));
+        int holders = ReplicaService.getHolders(clusterProperties, pair.getValue()).size();
+        switch (durability) {
+            case ASYNC:
+                //元数据异步提交，失败时只能由客户端重新上传
+                put(yfsConfig, pair).whenComplete((versioned, throwable) -> {
+                    if (throwable != null)
+                        LOGGER.warn("Failed to create event of {}", pair.getKey(), throwable);
+                });
+                return CompletableFuture.completedFuture(true);
+            case LOCAL:
+                return put(yfsConfig, pair).thenApply(versioned -> true);
+            case ALL:
+                return create(clusterProperties, yfsConfig, pair, holders);
+            default:
+                return create(clusterProperties, yfsConfig, pair, holders / 2 + 1);
+        }
+    }
+
+    private static CompletableFuture<Boolean> create(ClusterProperties clusterProperties, YfsConfig yfsConfig, Pair<String, FileEvent> pair, int qos) {
+        FileEvent fileEvent = pair.getValue();
+        long size;
+        if (fileEvent.getLinkPath() != null)
+            size = 0;
+        else if (fileEvent.getErasureCode() != null)
+            size = fileEvent.getErasureCode().getSize() / fileEvent.getErasureCode().getDataShards();
+        else
+            size = FileService.size(clusterProperties, pair.getKey());
+        //根据各节点的复制速度估算等待时间，复制确实卡住时小文件可以尽快返回
+        List<String> peers = ReplicaService.getHolders(clusterProperties, fileEvent).stream()
+                .filter(node -> !node.equals(clusterProperties.getLocal()))
+                .collect(Collectors.toList());
+        long timeoutMillis = ReplicationStats.getTimeout(clusterProperties, peers, size, qos - 1);
+        //链式复制已经确认的节点不再记录
+        Acknowledgment acknowledgment = new Acknowledgment(qos, size, peers.stream()
+                .filter(node -> !fileEvent.getAddNodes().contains(node))
+                .collect(Collectors.toList()));
+        CompletableFuture<Boolean> future = acknowledgment.future;
+        yfsConfig.cache.put(pair.getKey(), acknowledgment);
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (future.complete(false))
+                LOGGER.warn("Qos of {} is fail!", pair.getKey());
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, throwable) -> timeout.cancel(false));
+        //请求返回之后继续接收迟到的确认，直到yfs.store.qos_max_time
+        ScheduledFuture<?> expiration = timer.schedule(() -> {
+            yfsConfig.cache.invalidate(pair.getKey());
+            acknowledgment.expire();
+        }, clusterProperties.getStore().getQos_max_time(), TimeUnit.SECONDS);
+        put(yfsConfig, pair).whenComplete((versioned, throwable) -> {
+            if (throwable != null) {
+                expiration.cancel(false);
+                yfsConfig.cache.invalidate(pair.getKey());
+                future.completeExceptionally(throwable);
+            } else {
+                //Preventing network traffic from failing
+                //链式复制已经确认的节点也一并计数
+                for (int i = 0; i < fileEvent.getAddNodes().size(); i++) {
+                    acknowledgment.countDown();
+                }
+            }
+        });
+        return future;
+    }
+
+    private static CompletableFuture<Versioned<FileEvent>> put(YfsConfig yfsConfig, Pair<String, FileEvent> pair) {
+        return yfsConfig.fileEventMap.async().putIfAbsent(pair.getKey(), pair.getValue()).whenComplete((versioned, throwable) -> {
+            if (throwable == null)
+                LOGGER.debug("Success to create event of {}", pair.getKey());
+        });
     }
 
     public static boolean softDelete(ClusterProperties clusterProperties, YfsConfig yfsConfig, String path) {
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * 文件写入过程中同步计算出的校验信息，避免写完之后再次读取文件。
+ */
+@Getter
+@Setter
+public class FileDigest {
+    /**
+     * 写入的字节数
+     */
+    private long size;
+    /**
+     * crc32 checksum
+     */
+    private String crc32;
+    /**
+     * md5(hex)，未要求计算时为null
+     */
+    private String md5;
+    /**
+     * sha256(hex)，未要求计算时为null
+     */
+    private String sha256;
+}
@@ -23,13 +23,21 @@ import info.yangguo.yfs.config.ClusterProperties;
 import info.yangguo.yfs.config.StandardHeaders;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import org.apache.catalina.connector.ClientAbortException;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.fontbox.ttf.BufferedRandomAccessFile;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
@@ -45,21 +53,34 @@ import org.apache.tika.metadata.Metadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.commons.CommonsMultipartFile;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
 public class FileService {
     private static Logger logger = LoggerFactory.getLogger(FileService.class);
     public static Map<String, Long> runningFile = new ConcurrentHashMap<>();
-    private static HttpClient httpClient;
+    static HttpClient httpClient;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    //小文件直接拷贝的开销比sendfile更低，和Tomcat DefaultServlet的默认值保持一致
+    private static final int SENDFILE_MIN_SIZE = 48 * 1024;
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_FILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_FILE_END_ATTR = "org.apache.tomcat.sendfile.end";
 
     static {
         Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
@@ -75,6 +96,8 @@ public class FileService {
         httpClient = HttpClientBuilder.create()
                 .setDefaultRequestConfig(requestConfig)
                 .setConnectionManager(connectionManager)
+                //同步时直接保存对端磁盘上的压缩数据，不需要自动解压
+                .disableContentCompression()
                 .build();
     }
 
@@ -99,19 +122,236 @@ public class FileService {
      * @throws IOException
      */
     public static Pair<String, FileEvent> store(ClusterProperties clusterProperties, CommonsMultipartFile commonsMultipartFile, HttpServletRequest httpServletRequest) throws IOException {
+        return store(clusterProperties, commonsMultipartFile.getOriginalFilename(), commonsMultipartFile.getContentType(), commonsMultipartFile.getInputStream(), commonsMultipartFile.getSize(), httpServletRequest);
+    }
+
+    /**
+     * 用户通过raw body上传时文件的存储方法，请求体就是文件内容，文件名通过x-yfs-filename传递。
+     *
+     * @param clusterProperties
+     * @param inputStream
+     * @param httpServletRequest
+     * @return
+     * @throws IOException
+     */
+    public static Pair<String, FileEvent> store(ClusterProperties clusterProperties, InputStream inputStream, HttpServletRequest httpServletRequest) throws IOException {
+        long maxUploadSize = clusterProperties.getStore().getMax_upload_size();
+        long contentLength = httpServletRequest.getContentLengthLong();
+        if (maxUploadSize >= 0 && contentLength > maxUploadSize) {
+            throw new MaxUploadSizeExceededException(maxUploadSize);
+        }
+        return store(clusterProperties, httpServletRequest.getHeader(CommonConstant.xFileNameHeader), httpServletRequest.getContentType(), inputStream, contentLength, httpServletRequest);
+    }
+
+    /**
+     * 用户上传时文件的流式存储方法，直接从multipart请求体读取文件写入最终路径，不经过临时文件。
+     *
+     * @param clusterProperties
+     * @param httpServletRequest
+     * @return
+     * @throws IOException
+     */
+    public static Pair<String, FileEvent> store(ClusterProperties clusterProperties, HttpServletRequest httpServletRequest) throws IOException {
+        ServletFileUpload servletFileUpload = new ServletFileUpload();
+        servletFileUpload.setSizeMax(clusterProperties.getStore().getMax_upload_size());
+        servletFileUpload.setHeaderEncoding("UTF-8");
+        try {
+            FileItemIterator fileItemIterator = servletFileUpload.getItemIterator(httpServletRequest);
+            while (fileItemIterator.hasNext()) {
+                FileItemStream fileItemStream = fileItemIterator.next();
+                if (!fileItemStream.isFormField()) {
+                    try (InputStream inputStream = fileItemStream.openStream()) {
+                        return store(clusterProperties, fileItemStream.getName(), fileItemStream.getContentType(), inputStream, -1, httpServletRequest);
+                    }
+                }
+            }
+        } catch (FileUploadBase.FileUploadIOException e) {
+            if (e.getCause() instanceof FileUploadBase.SizeLimitExceededException) {
+                throw new MaxUploadSizeExceededException(clusterProperties.getStore().getMax_upload_size(), e);
+            }
+            throw e;
+        } catch (FileUploadBase.SizeLimitExceededException e) {
+            throw new MaxUploadSizeExceededException(clusterProperties.getStore().getMax_upload_size(), e);
+        } catch (FileUploadException e) {
+            throw new IOException(e);
+        }
+        throw new IOException("There is no file in the request");
+    }
+
+    /**
+     * 用户上传时文件的存储方法
+     *
+     * @param clusterProperties
+     * @param fileName           原始文件名，用来获取扩展名
+     * @param contentType        文件的Content-Type，用来判断是否压缩
+     * @param inputStream
+     * @param size               文件大小，-1表示未知
+     * @param httpServletRequest
+     * @return
+     * @throws IOException
+     */
+    private static Pair<String, FileEvent> store(ClusterProperties clusterProperties, String fileName, String contentType, InputStream inputStream, long size, HttpServletRequest httpServletRequest) throws IOException {
+        FileEvent fileEvent = new FileEvent();
+        String relativePath = makeRelativePath(clusterProperties, fileName);
+        Map<String, String> systemMetas = Maps.newHashMap();
+        Map<String, String> userMetas = getUserMetas(httpServletRequest);
+        //客户端提供crc32时，写入完成后由底层方法进行校验
+        String clientCrc32 = httpServletRequest.getHeader(CommonConstant.CRC32);
+        if (StringUtils.isNotBlank(clientCrc32)) {
+            systemMetas.put(CommonConstant.CRC32, clientCrc32.trim());
+        }
+        String storageClass = httpServletRequest.getHeader(CommonConstant.xStorageClassHeader);
+        //纠删码存储的文件不再压缩
+        String codec = ErasureCodeService.isRequested(clusterProperties, storageClass) ? null : CompressService.choose(clusterProperties, contentType, httpServletRequest.getHeader(CommonConstant.xCompressHeader));
+        if (codec != null) {
+            systemMetas.put(CommonConstant.CODEC, codec);
+        }
+        //链式复制时边写本地边转发，纠删码存储的文件由编码之后的shard分发；不等待副本确认的请求直接通过event同步
+        ChainReplicationService.Forwarder forwarder = null;
+        Map<String, String> chained = Maps.newHashMap();
+        EventService.Durability durability = EventService.Durability.parse(httpServletRequest.getHeader(CommonConstant.xDurabilityHeader), clusterProperties.getStore().getDurability());
+        if (ChainReplicationService.isEnabled(clusterProperties) && durability.isRemote() && !ErasureCodeService.isRequested(clusterProperties, storageClass)) {
+            forwarder = ChainReplicationService.forward(clusterProperties, relativePath, ChainReplicationService.getChain(clusterProperties, relativePath), codec, systemMetas.get(CommonConstant.CRC32), userMetas);
+            inputStream = new TeeInputStream(inputStream, forwarder.getOutputStream());
+        }
+        //文件大小已知时边写边编码，不需要在写完之后再从磁盘读回
+        ErasureCodeService.Encoder encoder = null;
+        if (size >= 0 && ErasureCodeService.accept(clusterProperties, storageClass, size)) {
+            encoder = ErasureCodeService.newEncoder(clusterProperties, relativePath, size);
+            inputStream = new TeeInputStream(inputStream, encoder);
+        }
+
+        try {
+            runningFile.putIfAbsent(relativePath, new Date().getTime());
+            String clientMd5 = httpServletRequest.getHeader(HttpHeaderNames.CONTENT_MD5.toString());
+            FileDigest fileDigest = store(clusterProperties, relativePath, inputStream, systemMetas, userMetas, StringUtils.isNotBlank(clientMd5));
+            if (forwarder != null) {
+                chained = forwarder.finish(fileDigest.getCrc32());
+                //上传节点必须是addNodes中的第一个
+                fileEvent.getAddNodes().add(clusterProperties.getLocal());
+                fileEvent.getAddNodes().addAll(chained.keySet());
+            }
+            if (size >= 0 && fileDigest.getSize() != size) {
+                throw new IOException("File[" + relativePath + "] is incomplete, expect " + size + " bytes but " + fileDigest.getSize());
+            }
+            if (StringUtils.isNotBlank(clientMd5) && !matchMd5(clientMd5, fileDigest.getMd5())) {
+                throw new IOException("md5 does't match");
+            }
+            if (ErasureCodeService.accept(clusterProperties, storageClass, fileDigest.getSize()) && !VolumeService.contains(clusterProperties, relativePath)) {
+                Map<String, String> metas = Maps.newHashMap(userMetas);
+                metas.putAll(systemMetas);
+                fileEvent.setErasureCode(encoder != null ? encoder.finish(metas) : ErasureCodeService.encode(clusterProperties, relativePath, metas));
+            } else {
+                if (encoder != null)
+                    encoder.abort();
+                if (DedupService.isEnabled(clusterProperties) && !VolumeService.contains(clusterProperties, relativePath))
+                    fileEvent.setLinkPath(DedupService.dedup(clusterProperties, relativePath, fileDigest, userMetas));
+            }
+        } catch (IOException | RuntimeException e) {
+            runningFile.remove(relativePath);
+            delete(clusterProperties, relativePath);
+            if (encoder != null)
+                encoder.abort();
+            if (forwarder != null) {
+                forwarder.abort();
+                ChainReplicationService.delete(clusterProperties, relativePath, chained.keySet());
+            }
+            throw e;
+        } finally {
+            runningFile.remove(relativePath);
+        }
+        return new ImmutablePair<>(relativePath, fileEvent);
+    }
+
+    /**
+     * 秒传：本地已经有内容相同的文件时直接生成新文件，客户端不需要上传数据。
+     * 用户元数据相同时创建硬链接，否则在本地拷贝一份。
+     * 只匹配接收请求的节点本地持有的内容，组内其他节点上的相同内容不会命中，此时客户端需要正常上传。
+     *
+     * @param clusterProperties
+     * @param algorithm          sha256或者md5
+     * @param hash               hex格式
+     * @param size
+     * @param httpServletRequest
+     * @return 本地没有该内容时返回null
+     * @throws IOException
+     */
+    public static Pair<String, FileEvent> storeByContent(ClusterProperties clusterProperties, String algorithm, String hash, long size, HttpServletRequest httpServletRequest) throws IOException {
+        String existing = DedupService.find(clusterProperties, algorithm, hash, size);
+        if (existing == null)
+            return null;
         FileEvent fileEvent = new FileEvent();
+        String relativePath = makeRelativePath(clusterProperties, httpServletRequest.getHeader(CommonConstant.xFileNameHeader));
+        Map<String, String> userMetas = getUserMetas(httpServletRequest);
+        try {
+            runningFile.putIfAbsent(relativePath, new Date().getTime());
+            if (DedupService.isSameMetas(clusterProperties, existing, userMetas)) {
+                DedupService.link(clusterProperties, existing, relativePath);
+                fileEvent.setLinkPath(existing);
+            } else {
+                Map<String, String> systemMetas = FileAttributes.getAllXattr(getFullPath(clusterProperties, existing))
+                        .entrySet()
+                        .stream()
+                        .filter(entry -> entry.getKey().equals(CommonConstant.CRC32) || entry.getKey().equals(CommonConstant.SHA256) || entry.getKey().equals(CommonConstant.MD5) || entry.getKey().equals(CommonConstant.CODEC))
+                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+                //已有文件是压缩存储的时候直接拷贝压缩后的数据
+                try (InputStream inputStream = new FileInputStream(getFullPath(clusterProperties, existing))) {
+                    store(clusterProperties, relativePath, inputStream, systemMetas, userMetas, false, IoScheduler.Priority.USER_WRITE, systemMetas.containsKey(CommonConstant.CODEC));
+                }
+            }
+            logger.debug("{} is stored by content of {}", relativePath, existing);
+        } catch (IOException | RuntimeException e) {
+            runningFile.remove(relativePath);
+            delete(clusterProperties, relativePath);
+            throw e;
+        } finally {
+            runningFile.remove(relativePath);
+        }
+        return new ImmutablePair<>(relativePath, fileEvent);
+    }
+
+    /**
+     * Content-MD5转换为hex格式
+     *
+     * @param md5 hex或者base64格式
+     * @return
+     */
+    public static String toHexMd5(String md5) {
+        md5 = md5.trim();
+        if (md5.length() == 32)
+            return md5.toLowerCase();
+        return Hex.encodeHexString(Base64.decodeBase64(md5));
+    }
+
+    /**
+     * 为新上传的文件生成相对路径
+     *
+     * @param clusterProperties
+     * @param fileName
+     * @return
+     */
+    public static String makeRelativePath(ClusterProperties clusterProperties, String fileName) {
         Integer block1 = new Random().nextInt(clusterProperties.getStore().getFiledata().getPartition()) + 1;
         Integer block2 = new Random().nextInt(clusterProperties.getStore().getFiledata().getPartition()) + 1;
         String newName = IdMaker.INSTANCE.next(clusterProperties.getGroup(), clusterProperties.getLocal());
-        String fileName = commonsMultipartFile.getOriginalFilename();
-        String exFileName = getExFileName.apply(fileName);
-        String relativePath = null;
+        //副本节点写在文件名中，gateway据此路由
+        String replicaSegment = ReplicaService.makeSegment(clusterProperties, newName);
+        if (replicaSegment != null)
+            newName = newName + "." + replicaSegment;
+        String exFileName = fileName == null ? null : getExFileName.apply(fileName);
         if (exFileName != null)
-            relativePath = Integer.toHexString(block1) + File.separator + Integer.toHexString(block2) + File.separator + newName + "." + exFileName;
+            return Integer.toHexString(block1) + File.separator + Integer.toHexString(block2) + File.separator + newName + "." + exFileName;
         else
-            relativePath = Integer.toHexString(block1) + File.separator + Integer.toHexString(block2) + File.separator + newName;
+            return Integer.toHexString(block1) + File.separator + Integer.toHexString(block2) + File.separator + newName;
+    }
 
-        Map<String, String> systemMetas = Maps.newHashMap();
+    /**
+     * 从请求头中提取需要保存的用户元数据
+     *
+     * @param httpServletRequest
+     * @return
+     */
+    public static Map<String, String> getUserMetas(HttpServletRequest httpServletRequest) {
         Map<String, String> userMetas = Maps.newHashMap();
         Set<String> standardHeaderNames = Arrays.stream(StandardHeaders.class.getFields()).map(field -> field.getName()).collect(Collectors.toSet());
         Enumeration headerNames = httpServletRequest.getHeaderNames();
@@ -120,31 +360,12 @@ public class FileService {
             if (standardHeaderNames.contains(headerName)) {
                 String headerValue = httpServletRequest.getHeader(headerName);
                 userMetas.put(headerName, headerValue);
-            } else if (headerName.startsWith(CommonConstant.xHeaderPrefix)) {
+            } else if (headerName.startsWith(CommonConstant.xHeaderPrefix) && !headerName.equals(CommonConstant.xFileNameHeader) && !headerName.equals(CommonConstant.xCompressHeader) && !headerName.equals(CommonConstant.xStorageClassHeader) && !headerName.equals(CommonConstant.xDurabilityHeader) && !headerName.equals(CommonConstant.xChainHeader) && !headerName.equals(CommonConstant.xChainCodecHeader)) {
                 String headerValue = httpServletRequest.getHeader(headerName);
                 userMetas.put(headerName, headerValue);
             }
         }
-
-        try {
-            runningFile.putIfAbsent(relativePath, new Date().getTime());
-            store(clusterProperties, relativePath, commonsMultipartFile.getInputStream(), systemMetas, userMetas);
-            String clientMd5 = httpServletRequest.getHeader(HttpHeaderNames.CONTENT_MD5.toString());
-            if (StringUtils.isNotBlank(clientMd5)) {
-                String serverMd5 = verifyFileByMd5(clusterProperties, relativePath);
-                if (clientMd5 != null) {
-                    if (!clientMd5.equals(serverMd5)) {
-                        throw new IOException("md5 does't match");
-                    }
-                }
-            }
-        } catch (IOException e) {
-            delete(clusterProperties, relativePath);
-            throw e;
-        } finally {
-            runningFile.remove(relativePath);
-        }
-        return new ImmutablePair<>(relativePath, fileEvent);
+        return userMetas;
     }
 
 
@@ -160,11 +381,11 @@ public class FileService {
 
         if (runningFile.putIfAbsent(relativePath, new Date().getTime()) == null) {
             try {
-                File file = new File(fullPath);
-                if (file.exists()) {
+                if (exists(clusterProperties, relativePath)) {
                     return;
                 }
                 HttpUriRequest fileRequest = new HttpGet(fileUrl);
+                fileRequest.setHeader(HttpHeaderNames.ACCEPT_ENCODING.toString(), CompressService.GZIP);
                 HttpResponse fileResponse = httpClient.execute(fileRequest);
 
                 Map<String, String> systemMetas = Maps.newHashMap();
@@ -181,11 +402,14 @@ public class FileService {
                     } else if (headerName.equals(CommonConstant.CRC32)) {
                         String headerValue = header.getValue();
                         userMetas.put(CommonConstant.CRC32, headerValue);
+                    } else if (headerName.equals(HttpHeaderNames.CONTENT_ENCODING.toString())) {
+                        systemMetas.put(CommonConstant.CODEC, header.getValue().trim().toLowerCase());
                     }
                 });
 
                 if (200 == fileResponse.getStatusLine().getStatusCode()) {
-                    store(clusterProperties, relativePath, fileResponse.getEntity().getContent(), systemMetas, userMetas);
+                    store(clusterProperties, relativePath, fileResponse.getEntity().getContent(), systemMetas, userMetas, false, IoScheduler.Priority.REPLICATION, systemMetas.containsKey(CommonConstant.CODEC));
+                    DedupService.register(clusterProperties, relativePath);
                     logger.debug("Success to store {}", relativePath);
                 } else {
                     throw new RuntimeException("Failed to get file " + relativePath);
@@ -208,25 +432,231 @@ public class FileService {
      * @param inputStream
      * @throws Exception
      */
-    public static void store(ClusterProperties clusterProperties, String relativePath, InputStream inputStream, Map<String, String> systemMetas, Map<String, String> userMetas) throws IOException {
-        String fullPath = getFullPath(clusterProperties, relativePath);
+    public static FileDigest store(ClusterProperties clusterProperties, String relativePath, InputStream inputStream, Map<String, String> systemMetas, Map<String, String> userMetas) throws IOException {
+        return store(clusterProperties, relativePath, inputStream, systemMetas, userMetas, false);
+    }
+
+    /**
+     * 存储文件的底层方法，写入磁盘的同时计算crc32、md5及sha256，整个过程只遍历一次数据。
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param inputStream
+     * @param systemMetas
+     * @param userMetas
+     * @param md5               是否需要计算md5
+     * @return
+     * @throws IOException
+     */
+    public static FileDigest store(ClusterProperties clusterProperties, String relativePath, InputStream inputStream, Map<String, String> systemMetas, Map<String, String> userMetas, boolean md5) throws IOException {
+        return store(clusterProperties, relativePath, inputStream, systemMetas, userMetas, md5, IoScheduler.Priority.USER_WRITE);
+    }
+
+    /**
+     * 存储文件的底层方法，写入磁盘的同时计算crc32、md5及sha256，整个过程只遍历一次数据。
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param inputStream
+     * @param systemMetas
+     * @param userMetas
+     * @param md5               是否需要计算md5
+     * @param priority          IO优先级，用户上传和节点间同步不同
+     * @return
+     * @throws IOException
+     */
+    public static FileDigest store(ClusterProperties clusterProperties, String relativePath, InputStream inputStream, Map<String, String> systemMetas, Map<String, String> userMetas, boolean md5, IoScheduler.Priority priority) throws IOException {
+        return store(clusterProperties, relativePath, inputStream, systemMetas, userMetas, md5, priority, false);
+    }
+
+    /**
+     * 存储文件的底层方法，写入磁盘的同时计算crc32、md5及sha256，整个过程只遍历一次数据。
+     * systemMetas中有codec时文件压缩存储，摘要都是针对原始内容计算的。
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param inputStream
+     * @param systemMetas
+     * @param userMetas
+     * @param md5               是否需要计算md5
+     * @param priority          IO优先级，用户上传和节点间同步不同
+     * @param encoded           inputStream是否已经是codec编码之后的数据，比如同步时对端返回的压缩数据
+     * @return
+     * @throws IOException
+     */
+    public static FileDigest store(ClusterProperties clusterProperties, String relativePath, InputStream inputStream, Map<String, String> systemMetas, Map<String, String> userMetas, boolean md5, IoScheduler.Priority priority, boolean encoded) throws IOException {
+        //写入完成之前文件不存在，整个过程使用同一块盘
+        Disk disk = DiskService.allocate(clusterProperties, relativePath);
+        String fullPath = disk.getPath() + File.separator + relativePath;
         File file = new File(fullPath);
-        if (file.exists()) {
-            file.delete();
-            //赋予新的iNode
-            file = new File(fullPath);
+        //先写入隐藏的临时文件，fsync之后再rename到最终路径，崩溃时不会在最终路径留下不完整的文件。rename同时也赋予了新的iNode
+        File tmpFile = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        //去重及秒传依赖sha256和md5
+        boolean sha256 = clusterProperties.getStore().getFiledata().isSha256() || DedupService.isEnabled(clusterProperties);
+        md5 = md5 || DedupService.isEnabled(clusterProperties);
+        byte[] head = null;
+        int headLength = 0;
+        //已经编码的数据无法判断原始大小，不放入volume
+        if (!encoded && VolumeService.accept(clusterProperties, 0)) {
+            //多读一个字节，用来判断文件是否超过小文件的阈值
+            head = new byte[clusterProperties.getStore().getVolume().getSmall_file_size() + 1];
+            headLength = IOUtils.read(inputStream, head);
         }
-        FileUtils.copyInputStreamToFile(inputStream, file);
-        String crc32 = String.valueOf(FileUtils.checksumCRC32(file));
-        if (systemMetas.containsKey(CommonConstant.CRC32)) {
-            if (!systemMetas.get(CommonConstant.CRC32).equals(crc32)) {
-                throw new RuntimeException("File[" + relativePath + "]'s crc32 doesn't match");
+        boolean small = head != null && VolumeService.accept(clusterProperties, headLength);
+        try {
+            FileDigest fileDigest;
+            if (small) {
+                //小文件放在volume中已经足够紧凑，不再压缩
+                systemMetas.remove(CommonConstant.CODEC);
+                fileDigest = digest(head, headLength, md5, sha256);
+            } else {
+                if (headLength > 0) {
+                    inputStream = new SequenceInputStream(new ByteArrayInputStream(head, 0, headLength), inputStream);
+                }
+                long start = System.currentTimeMillis();
+                fileDigest = write(inputStream, tmpFile, md5, sha256, disk, priority, systemMetas.get(CommonConstant.CODEC), encoded);
+                disk.updateLatency(System.currentTimeMillis() - start);
             }
-        } else {
-            systemMetas.put(CommonConstant.CRC32, crc32);
+            if (systemMetas.containsKey(CommonConstant.CRC32)) {
+                if (!systemMetas.get(CommonConstant.CRC32).equals(fileDigest.getCrc32())) {
+                    throw new RuntimeException("File[" + relativePath + "]'s crc32 doesn't match");
+                }
+            } else {
+                systemMetas.put(CommonConstant.CRC32, fileDigest.getCrc32());
+            }
+            if (fileDigest.getSha256() != null) {
+                systemMetas.put(CommonConstant.SHA256, fileDigest.getSha256());
+            }
+            if (fileDigest.getMd5() != null) {
+                systemMetas.put(CommonConstant.MD5, fileDigest.getMd5());
+            }
+            if (small) {
+                Map<String, String> metas = Maps.newHashMap(userMetas);
+                metas.putAll(systemMetas);
+                VolumeService.put(clusterProperties, relativePath, head, headLength, Long.parseLong(fileDigest.getCrc32()), metas, priority);
+                if (file.exists())
+                    file.delete();
+            } else {
+                FileAttributes.setXattr(systemMetas, tmpFile.getPath());
+                FileAttributes.setXattr(userMetas, tmpFile.getPath());
+                GroupCommitService.commit(clusterProperties, tmpFile.toPath(), file.toPath());
+                DiskService.assign(clusterProperties, relativePath, disk);
+                if (VolumeService.contains(clusterProperties, relativePath)) {
+                    VolumeService.delete(clusterProperties, relativePath);
+                }
+            }
+            return fileDigest;
+        } finally {
+            if (tmpFile.exists())
+                tmpFile.delete();
+        }
+    }
+
+    /**
+     * 将输入流写入文件，写入的同时计算各种摘要。
+     *
+     * @param inputStream
+     * @param file
+     * @param md5
+     * @param sha256
+     * @param disk        文件所在的盘
+     * @param priority
+     * @param codec       文件在磁盘上的编码，null表示不压缩
+     * @param encoded     inputStream是否已经是codec编码之后的数据，是的话原样写入，解压之后计算摘要
+     * @return
+     * @throws IOException
+     */
+    private static FileDigest write(InputStream inputStream, File file, boolean md5, boolean sha256, Disk disk, IoScheduler.Priority priority, String codec, boolean encoded) throws IOException {
+        FileUtils.forceMkdir(file.getParentFile());
+        CRC32 crc32 = new CRC32();
+        MessageDigest md5Digest = md5 ? DigestUtils.getMd5Digest() : null;
+        MessageDigest sha256Digest = sha256 ? DigestUtils.getSha256Digest() : null;
+        long size = 0;
+        byte[] buff = new byte[BUFFER_SIZE];
+        try (OutputStream fileOutputStream = disk.newOutputStream(file.toPath(), priority)) {
+            //encoded时从tee中读取的数据会原样写入文件
+            InputStream tee = null;
+            InputStream source = inputStream;
+            OutputStream sink = fileOutputStream;
+            if (codec != null && encoded) {
+                tee = new TeeInputStream(inputStream, fileOutputStream);
+                source = CompressService.decode(codec, tee);
+                sink = null;
+            } else if (codec != null) {
+                sink = CompressService.encode(codec, fileOutputStream);
+            }
+            int length;
+            while ((length = source.read(buff)) != -1) {
+                crc32.update(buff, 0, length);
+                if (md5Digest != null)
+                    md5Digest.update(buff, 0, length);
+                if (sha256Digest != null)
+                    sha256Digest.update(buff, 0, length);
+                if (sink != null)
+                    sink.write(buff, 0, length);
+                size += length;
+            }
+            if (tee != null) {
+                //解压结束之后尚未读取的数据也要原样写入
+                while (tee.read(buff) != -1) {
+                }
+            } else if (codec != null) {
+                //写入压缩流的尾部
+                sink.close();
+            }
+        }
+        return toFileDigest(size, crc32, md5Digest, sha256Digest);
+    }
+
+    /**
+     * 计算内存中小文件的各种摘要
+     *
+     * @param data
+     * @param length
+     * @param md5
+     * @param sha256
+     * @return
+     */
+    private static FileDigest digest(byte[] data, int length, boolean md5, boolean sha256) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, length);
+        MessageDigest md5Digest = md5 ? DigestUtils.getMd5Digest() : null;
+        if (md5Digest != null)
+            md5Digest.update(data, 0, length);
+        MessageDigest sha256Digest = sha256 ? DigestUtils.getSha256Digest() : null;
+        if (sha256Digest != null)
+            sha256Digest.update(data, 0, length);
+        return toFileDigest(length, crc32, md5Digest, sha256Digest);
+    }
+
+    private static FileDigest toFileDigest(long size, CRC32 crc32, MessageDigest md5Digest, MessageDigest sha256Digest) {
+        FileDigest fileDigest = new FileDigest();
+        fileDigest.setSize(size);
+        fileDigest.setCrc32(String.valueOf(crc32.getValue()));
+        if (md5Digest != null)
+            fileDigest.setMd5(Hex.encodeHexString(md5Digest.digest()));
+        if (sha256Digest != null)
+            fileDigest.setSha256(Hex.encodeHexString(sha256Digest.digest()));
+        return fileDigest;
+    }
+
+    /**
+     * Content-MD5既可以是hex格式，也可以是RFC1864规定的base64格式
+     *
+     * @param clientMd5
+     * @param serverMd5 hex格式
+     * @return
+     */
+    private static boolean matchMd5(String clientMd5, String serverMd5) {
+        if (serverMd5 == null)
+            return false;
+        if (clientMd5.equalsIgnoreCase(serverMd5))
+            return true;
+        try {
+            return clientMd5.equals(Base64.encodeBase64String(Hex.decodeHex(serverMd5.toCharArray())));
+        } catch (DecoderException e) {
+            return false;
         }
-        FileAttributes.setXattr(systemMetas, fullPath);
-        FileAttributes.setXattr(userMetas, fullPath);
     }
 
     /**
@@ -239,90 +669,158 @@ public class FileService {
      */
     public static void getFile(ClusterProperties clusterProperties, String relativePath, HttpServletRequest request, HttpServletResponse
             response) throws IOException {
-        int buffSize = 256;
-
         //支持范围请求
         response.setHeader(HttpHeaderNames.ACCEPT_RANGES.toString(), "bytes");
+        String filePath = getFullPath(clusterProperties, relativePath);
+        //小文件从volume中一次定位读取
+        Pair<Map<String, String>, ByteBuffer> needle = VolumeService.read(clusterProperties, relativePath, IoScheduler.Priority.USER_READ);
+        Map<String, String> metas = needle != null ? needle.getKey() : FileAttributes.getAllXattr(filePath);
+        String codec = metas.remove(CommonConstant.CODEC);
+        metas.remove(TierService.TIER);
+        if (needle == null)
+            TierService.touch(relativePath);
         //添加xattr
-        FileAttributes.getAllXattr(FileService.getFullPath(clusterProperties, relativePath))
-                .entrySet()
+        metas.entrySet()
                 .stream()
                 .forEach(entry -> {
                     response.setHeader(entry.getKey(), entry.getValue());
                 });
-
-        String[] ranges = null;
-        //http协议支持单一范围和多重范围查询
-        String rangeHeader = request.getHeader(HttpHeaderNames.RANGE.toString());
-        if (StringUtils.isNotBlank(rangeHeader) && rangeHeader.contains("bytes=") && rangeHeader.contains("-")) {
-            rangeHeader = rangeHeader.trim();
-            rangeHeader = rangeHeader.replace("bytes=", "");
-            ranges = rangeHeader.split(",");
-        }
-        String filePath = getFullPath(clusterProperties, relativePath);
-        BasicFileAttributes basicFileAttributes = FileAttributes.getBasicAttrs(filePath);
-        if (ranges != null) {
-            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
-            if (ranges.length == 1) {//单一范围
-                String range = null;
-                Long start = null;
-                Long end = null;
-                if (ranges[0].startsWith("-")) {
-                    range = "0" + ranges[0];
-                } else if (ranges[0].endsWith("-")) {
-                    range = ranges[0] + (basicFileAttributes.size() - 1);
-                }
-                String[] rangeInfo = range.split("-");
-                start = Long.valueOf(rangeInfo[0]);
-                end = Long.valueOf(rangeInfo[1]);
-
-                if (start < 0 || end < 0 || start.longValue() == end.longValue()) {
-                    throw new RuntimeException("range is mistake");
-                } else {
-                    Long contentLength = end - start + 1;
-                    response.setHeader(HttpHeaderNames.CONTENT_RANGE.toString(), "bytes " + start + "-" + end + "/" + basicFileAttributes.size());
-                    response.setHeader(Metadata.CONTENT_LENGTH, String.valueOf(contentLength));
-
-                    //已传送数据大小
-                    long transmitted = 0;
-                    try (RandomAccessFile randomAccessFile = new BufferedRandomAccessFile(filePath, "r", buffSize); BufferedOutputStream outputStream = new BufferedOutputStream(response.getOutputStream())) {
-                        byte[] buff = new byte[buffSize];
-                        int length = 0;
-                        randomAccessFile.seek(start);
-                        //特别注意：下面判断条件的顺序不能颠倒
-                        while ((transmitted + length) <= contentLength && (length = randomAccessFile.read(buff)) != -1) {
-                            outputStream.write(buff, 0, length);
-                            transmitted += length;
-                        }
-                        //处理不足buff.length部分
-                        if (transmitted < contentLength) {
-                            length = randomAccessFile.read(buff, 0, (int) (contentLength - transmitted));
-                            outputStream.write(buff, 0, length);
-                            transmitted += length;
-                        }
-
-                        outputStream.flush();
+        if (codec != null) {
+            response.setHeader(HttpHeaderNames.VARY.toString(), HttpHeaderNames.ACCEPT_ENCODING.toString());
+            if (CompressService.isAccepted(request, codec)) {
+                //客户端接受该编码时直接返回磁盘上的数据，范围请求针对的也是编码之后的数据
+                response.setHeader(HttpHeaderNames.CONTENT_ENCODING.toString(), codec);
+            } else {
+                //边读边解压，原始大小未知，不支持范围请求
+                response.setHeader(HttpHeaderNames.ACCEPT_RANGES.toString(), "none");
+                response.setStatus(HttpStatus.OK.value());
+                Disk disk = DiskService.locate(clusterProperties, relativePath);
+                try (InputStream inputStream = disk.newInputStream(Paths.get(filePath), IoScheduler.Priority.USER_READ)) {
+                    byte[] buff = BufferPool.acquire();
+                    try {
+                        IOUtils.copyLarge(CompressService.decode(codec, inputStream), response.getOutputStream(), buff);
                         response.flushBuffer();
-                    } catch (ClientAbortException e) {
-                        logger.warn("Download {} is failing beacause client abort!", relativePath);
-                    } catch (IOException e) {
-                        throw e;
+                    } finally {
+                        BufferPool.release(buff);
                     }
+                } catch (ClientAbortException e) {
+                    logger.warn("Download {} is failing beacause client abort!", relativePath);
                 }
-            } else {//多重范围暂时不支持
+                return;
+            }
+        }
+
+        long fileSize = needle != null ? needle.getValue().remaining() : FileAttributes.getBasicAttrs(filePath).size();
+        long start = 0;
+        long contentLength = fileSize;
+        String rangeHeader = request.getHeader(HttpHeaderNames.RANGE.toString());
+        if (StringUtils.isNotBlank(rangeHeader)) {
+            long[] range = parseRange(rangeHeader, fileSize);
+            if (range == null) {
+                response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                response.setHeader(HttpHeaderNames.CONTENT_RANGE.toString(), "bytes */" + fileSize);
+                response.setHeader(Metadata.CONTENT_LENGTH, "0");
+                return;
+            } else if (range.length == 2) {
+                start = range[0];
+                contentLength = range[1] - range[0] + 1;
+                response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                response.setHeader(HttpHeaderNames.CONTENT_RANGE.toString(), "bytes " + range[0] + "-" + range[1] + "/" + fileSize);
+            } else {//多重范围暂时不支持，按照协议返回整个文件
+                response.setStatus(HttpStatus.OK.value());
             }
         } else {//client没有进行范围查询
             response.setStatus(HttpStatus.OK.value());
-            response.setHeader(Metadata.CONTENT_LENGTH, String.valueOf(basicFileAttributes.size()));
+        }
+        response.setHeader(Metadata.CONTENT_LENGTH, String.valueOf(contentLength));
 
-            File file = new File(filePath);
-            try (InputStream inputStream = new FileInputStream(file); OutputStream outputStream = response.getOutputStream()) {
-                IOUtils.copyLarge(inputStream, outputStream, new byte[buffSize]);
-            } catch (ClientAbortException e) {
-                logger.warn("Download {} is failing beacause client abort!", relativePath);
-            } catch (IOException e) {
-                throw e;
+        try {
+            if (needle != null) {
+                ByteBuffer data = needle.getValue();
+                response.getOutputStream().write(data.array(), data.arrayOffset() + data.position() + (int) start, (int) contentLength);
+                response.flushBuffer();
+            } else {
+                transfer(filePath, start, contentLength, DiskService.locate(clusterProperties, relativePath), request, response);
             }
+        } catch (ClientAbortException e) {
+            logger.warn("Download {} is failing beacause client abort!", relativePath);
+        }
+    }
+
+    /**
+     * 解析单一范围请求
+     *
+     * @param rangeHeader
+     * @param fileSize
+     * @return null表示范围不合法，长度为0表示多重范围，否则为[start,end]
+     */
+    private static long[] parseRange(String rangeHeader, long fileSize) {
+        rangeHeader = rangeHeader.trim();
+        if (!rangeHeader.startsWith("bytes="))
+            return new long[0];
+        String[] ranges = rangeHeader.substring("bytes=".length()).split(",");
+        if (ranges.length != 1)
+            return new long[0];
+        String range = ranges[0].trim();
+        int index = range.indexOf('-');
+        if (index < 0)
+            return null;
+        long start;
+        long end;
+        try {
+            if (index == 0) {//bytes=-n，最后n个字节
+                long suffix = Long.parseLong(range.substring(1));
+                start = Math.max(fileSize - suffix, 0);
+                end = fileSize - 1;
+            } else {
+                start = Long.parseLong(range.substring(0, index));
+                end = index == range.length() - 1 ? fileSize - 1 : Math.min(Long.parseLong(range.substring(index + 1)), fileSize - 1);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (start < 0 || start > end || start >= fileSize)
+            return null;
+        return new long[]{start, end};
+    }
+
+    /**
+     * 将文件的指定区间写入response。connector支持sendfile时交给Tomcat零拷贝发送，否则使用大buffer进行定位读。
+     *
+     * @param filePath
+     * @param start
+     * @param length
+     * @param disk     文件所在的盘，每次读取都需要先获取该盘的IO许可
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    private static void transfer(String filePath, long start, long length, Disk disk, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (length >= SENDFILE_MIN_SIZE && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, filePath);
+            request.setAttribute(SENDFILE_FILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_FILE_END_ATTR, start + length);
+            return;
+        }
+        byte[] buff = BufferPool.acquire();
+        try (FileChannel fileChannel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            OutputStream outputStream = response.getOutputStream();
+            long position = start;
+            long end = start + length;
+            while (position < end) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buff, 0, (int) Math.min(buff.length, end - position));
+                int read;
+                try (IoScheduler.Permit permit = disk.getScheduler().acquire(IoScheduler.Priority.USER_READ)) {
+                    read = fileChannel.read(byteBuffer, position);
+                }
+                if (read == -1)
+                    break;
+                outputStream.write(buff, 0, read);
+                position += read;
+            }
+            response.flushBuffer();
+        } finally {
+            BufferPool.release(buff);
         }
     }
 
@@ -338,9 +836,50 @@ public class FileService {
             File file = new File(fullPath);
             if (file.exists())
                 file.delete();
+            try {
+                VolumeService.delete(clusterProperties, key);
+            } catch (IOException e) {
+                logger.warn("Failed to delete needle {}", key, e);
+            }
         }
     }
 
+    /**
+     * 删除原文件，纠删码存储的文件同时删除当前节点上的shard
+     *
+     * @param clusterProperties
+     * @param key
+     * @param fileEvent
+     */
+    public static void delete(ClusterProperties clusterProperties, String key, FileEvent fileEvent) {
+        delete(clusterProperties, key);
+        if (fileEvent != null && fileEvent.getErasureCode() != null && !runningFile.containsKey(key))
+            ErasureCodeService.delete(clusterProperties, key, fileEvent.getErasureCode());
+    }
+
+    /**
+     * 判断文件是否存在，文件可能是单独的文件，也可能在volume中
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @return
+     */
+    public static boolean exists(ClusterProperties clusterProperties, String relativePath) {
+        return VolumeService.contains(clusterProperties, relativePath) || new File(getFullPath(clusterProperties, relativePath)).exists();
+    }
+
+    /**
+     * 文件在本地占用的字节数，存储在volume中的小文件按照needle的数据大小计算
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @return 不存在时返回0
+     */
+    public static long size(ClusterProperties clusterProperties, String relativePath) {
+        long size = VolumeService.size(clusterProperties, relativePath);
+        return size >= 0 ? size : new File(getFullPath(clusterProperties, relativePath)).length();
+    }
+
     /**
      * 获取文件在服务器端的绝对路径
      *
@@ -349,15 +888,7 @@ public class FileService {
      * @return
      */
     public static String getFullPath(ClusterProperties clusterProperties, String relativeFilePath) {
-        StringBuilder filePath = new StringBuilder();
-        if (!clusterProperties.getStore().getFiledata().getDir().startsWith(File.separator)) {
-            filePath.append(FileUtils.getUserDirectoryPath()).append(File.separator);
-        } else {
-            filePath.append(clusterProperties.getStore().getFiledata().getDir()).append(File.separator);
-        }
-        filePath.append(clusterProperties.getStore().getFiledata().getDir()).append(File.separator);
-        filePath.append(relativeFilePath);
-        return filePath.toString();
+        return DiskService.locate(clusterProperties, relativeFilePath).getPath() + File.separator + relativeFilePath;
     }
 
     /**
@@ -368,14 +899,41 @@ public class FileService {
      * @return
      */
     public static String getRelativePath(ClusterProperties clusterProperties, String absolutePath) {
-        StringBuilder parentPath = new StringBuilder();
-        if (!clusterProperties.getStore().getFiledata().getDir().startsWith(File.separator)) {
-            parentPath.append(FileUtils.getUserDirectoryPath()).append(File.separator);
-        } else {
-            parentPath.append(clusterProperties.getStore().getFiledata().getDir()).append(File.separator);
+        Disk disk = DiskService.getDisk(clusterProperties, absolutePath);
+        if (disk == null)
+            return absolutePath;
+        return absolutePath.substring(Math.min(disk.getPath().length() + 1, absolutePath.length()));
+    }
+
+    /**
+     * 分块计算文件的crc32，每次读取都需要获取IO许可，后台扫描不会影响用户请求
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param priority
+     * @return
+     * @throws IOException
+     */
+    public static String checksumCRC32(ClusterProperties clusterProperties, String relativePath, IoScheduler.Priority priority) throws IOException {
+        Disk disk = DiskService.locate(clusterProperties, relativePath);
+        String fullPath = getFullPath(clusterProperties, relativePath);
+        //压缩存储的文件需要解压之后计算原始内容的crc32
+        String codec = FileAttributes.getXattr(CommonConstant.CODEC, fullPath);
+        CRC32 crc32 = new CRC32();
+        byte[] buff = BufferPool.acquire();
+        InputStream inputStream = disk.newInputStream(Paths.get(fullPath), priority);
+        try {
+            if (codec != null)
+                inputStream = CompressService.decode(codec, inputStream);
+            int read;
+            while ((read = inputStream.read(buff)) != -1) {
+                crc32.update(buff, 0, read);
+            }
+        } finally {
+            inputStream.close();
+            BufferPool.release(buff);
         }
-        parentPath.append(clusterProperties.getStore().getFiledata().getDir()).append(File.separator);
-        return absolutePath.replace(parentPath.toString(), "");
+        return String.valueOf(crc32.getValue());
     }
 
     /**
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import info.yangguo.yfs.config.ClusterProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * group commit：并发写入的文件由一个线程批量fsync，再rename到最终路径，最后对涉及到的目录各fsync一次。
+ * 同一批次中同一个文件(比如volume)只会fsync一次，写入方只等待所在批次完成，不需要各自串行fsync。
+ */
+public class GroupCommitService {
+    private static Logger logger = LoggerFactory.getLogger(GroupCommitService.class);
+    private static final BlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+    private static volatile Thread committer;
+
+    /**
+     * 将写完的临时文件持久化并rename到最终路径，方法返回时文件及目录项都已经落盘。
+     * 没有开启fsync时只做rename。
+     *
+     * @param clusterProperties
+     * @param tmp
+     * @param target
+     * @throws IOException
+     */
+    public static void commit(ClusterProperties clusterProperties, Path tmp, Path target) throws IOException {
+        if (!clusterProperties.getStore().getFiledata().isFsync()) {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+        submit(clusterProperties, new Commit(tmp, target));
+    }
+
+    /**
+     * 持久化追加写的文件，比如volume
+     *
+     * @param clusterProperties
+     * @param files
+     * @throws IOException
+     */
+    public static void sync(ClusterProperties clusterProperties, Path... files) throws IOException {
+        if (!clusterProperties.getStore().getFiledata().isFsync())
+            return;
+        Commit[] commits = Arrays.stream(files).map(file -> new Commit(file, null)).toArray(Commit[]::new);
+        submit(clusterProperties, commits);
+    }
+
+    private static void submit(ClusterProperties clusterProperties, Commit... commits) throws IOException {
+        start(clusterProperties);
+        queue.addAll(Arrays.asList(commits));
+        for (Commit commit : commits) {
+            try {
+                commit.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for fsync of " + commit.file);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    private static void start(ClusterProperties clusterProperties) {
+        if (committer != null)
+            return;
+        synchronized (GroupCommitService.class) {
+            if (committer != null)
+                return;
+            long interval = clusterProperties.getStore().getFiledata().getFsync_interval();
+            Thread thread = new Thread(() -> {
+                while (true) {
+                    List<Commit> batch = new ArrayList<>();
+                    try {
+                        batch.add(queue.take());
+                        //等待一小段时间，让更多的并发写入加入到本批次
+                        if (interval > 0)
+                            TimeUnit.MILLISECONDS.sleep(interval);
+                        queue.drainTo(batch);
+                        commit(batch);
+                    } catch (InterruptedException e) {
+                        logger.warn("Group commit thread is interrupted");
+                        fail(batch, new InterruptedIOException("Group commit thread is interrupted"));
+                        return;
+                    } catch (Throwable e) {
+                        logger.error("Group commit failure", e);
+                        //已经完成的future不受影响，其余的必须结束，否则submit会一直等待
+                        fail(batch, e);
+                    }
+                }
+            }, "group-commit");
+            thread.setDaemon(true);
+            thread.start();
+            committer = thread;
+        }
+    }
+
+    private static void commit(List<Commit> batch) {
+        Set<Path> forced = new HashSet<>();
+        Map<Path, IOException> failures = new HashMap<>();
+        Map<Path, List<Commit>> dirs = new HashMap<>();
+        for (Commit commit : batch) {
+            IOException exception = failures.get(commit.file);
+            if (exception == null && forced.add(commit.file)) {
+                try {
+                    force(commit.file, StandardOpenOption.WRITE);
+                } catch (IOException e) {
+                    exception = e;
+                    failures.put(commit.file, e);
+                }
+            }
+            if (exception == null && commit.target != null) {
+                try {
+                    Files.move(commit.file, commit.target, StandardCopyOption.ATOMIC_MOVE);
+                    dirs.computeIfAbsent(commit.target.getParent(), dir -> new ArrayList<>()).add(commit);
+                    continue;
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+            if (exception != null)
+                commit.future.completeExceptionally(exception);
+            else
+                commit.future.complete(null);
+        }
+        //rename之后目录项也需要落盘
+        dirs.forEach((dir, commits) -> {
+            try {
+                force(dir, StandardOpenOption.READ);
+                commits.forEach(commit -> commit.future.complete(null));
+            } catch (IOException e) {
+                commits.forEach(commit -> commit.future.completeExceptionally(e));
+            }
+        });
+        logger.debug("Group commit {} files and {} dirs", forced.size(), dirs.size());
+    }
+
+    private static void fail(List<Commit> batch, Throwable throwable) {
+        batch.forEach(commit -> commit.future.completeExceptionally(throwable));
+    }
+
+    private static void force(Path path, StandardOpenOption option) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(path, option)) {
+            fileChannel.force(true);
+        }
+    }
+
+    private static class Commit {
+        /**
+         * 需要fsync的文件
+         */
+        private final Path file;
+        /**
+         * fsync之后rename的目标，为null时不需要rename
+         */
+        private final Path target;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Commit(Path file, Path target) {
+            this.file = file;
+            this.target = target;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 单块盘的IO调度器：同一时刻最多concurrency个IO操作，其余按照优先级排队，每个优先级的队列长度有上限。
+ * 调度粒度是单次读写(一个buffer)，而不是整个请求，所以慢客户端不会长时间占用磁盘，
+ * 后台任务也只能在没有更高优先级请求排队的时候才能拿到许可。
+ */
+public class IoScheduler {
+    public enum Priority {
+        USER_READ,
+        USER_WRITE,
+        REPLICATION,
+        SCRUB
+    }
+
+    private final int concurrency;
+    private final int maxWaiters;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Deque<Waiter>[] queues;
+    private int running = 0;
+
+    /**
+     * @param concurrency 同时进行的IO操作数，小于等于0表示不限制
+     * @param maxWaiters  每个优先级最多排队的IO操作数
+     */
+    public IoScheduler(int concurrency, int maxWaiters) {
+        this.concurrency = concurrency;
+        this.maxWaiters = maxWaiters;
+        this.queues = new Deque[Priority.values().length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * 获取一次IO操作的许可，使用完之后需要close
+     *
+     * @param priority
+     * @return
+     * @throws IOException 排队已满或者等待时被中断
+     */
+    public Permit acquire(Priority priority) throws IOException {
+        if (concurrency <= 0)
+            return Permit.NONE;
+        lock.lock();
+        try {
+            if (running < concurrency && isIdle()) {
+                running++;
+                return new Permit(this);
+            }
+            Deque<Waiter> queue = queues[priority.ordinal()];
+            if (queue.size() >= maxWaiters) {
+                throw new IOException("Too many pending " + priority + " io requests");
+            }
+            Waiter waiter = new Waiter(lock.newCondition());
+            queue.add(waiter);
+            try {
+                while (!waiter.granted) {
+                    waiter.condition.await();
+                }
+            } catch (InterruptedException e) {
+                if (waiter.granted) {
+                    release();
+                } else {
+                    queue.remove(waiter);
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + priority + " io permit");
+            }
+            return new Permit(this);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 各优先级排队的IO操作数
+     *
+     * @return
+     */
+    public int[] getWaiters() {
+        lock.lock();
+        try {
+            int[] waiters = new int[queues.length];
+            for (int i = 0; i < queues.length; i++) {
+                waiters[i] = queues[i].size();
+            }
+            return waiters;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            running--;
+            //按照优先级从高到低唤醒
+            for (Deque<Waiter> queue : queues) {
+                Waiter waiter = queue.poll();
+                if (waiter != null) {
+                    waiter.granted = true;
+                    running++;
+                    waiter.condition.signal();
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isIdle() {
+        for (Deque<Waiter> queue : queues) {
+            if (!queue.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    private static class Waiter {
+        private final Condition condition;
+        private boolean granted = false;
+
+        private Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+
+    public static class Permit implements Closeable {
+        private static final Permit NONE = new Permit(null);
+        private final IoScheduler scheduler;
+        private boolean closed = false;
+
+        private Permit(IoScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void close() {
+            if (scheduler != null && !closed) {
+                closed = true;
+                scheduler.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import info.yangguo.yfs.config.ClusterProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 集群内store的地址白名单，节点之间使用的接口(api/chain、api/shard以及replication_port)只允许这些地址访问
+ */
+public class PeerService {
+    private static Logger logger = LoggerFactory.getLogger(PeerService.class);
+    private static volatile Set<String> peerAddresses;
+
+    /**
+     * @param clusterProperties
+     * @param address           对端的ip
+     * @return 是否为yfs.store.node中的节点
+     */
+    public static boolean isPeer(ClusterProperties clusterProperties, String address) {
+        return getPeerAddresses(clusterProperties).contains(address);
+    }
+
+    private static Set<String> getPeerAddresses(ClusterProperties clusterProperties) {
+        Set<String> addresses = peerAddresses;
+        if (addresses == null) {
+            addresses = new HashSet<>();
+            for (ClusterProperties.ClusterNode node : clusterProperties.getStore().getNode()) {
+                try {
+                    for (InetAddress address : InetAddress.getAllByName(node.getIp())) {
+                        addresses.add(address.getHostAddress());
+                    }
+                } catch (UnknownHostException e) {
+                    logger.warn("Failed to resolve {}", node.getIp(), e);
+                }
+            }
+            peerAddresses = addresses;
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import com.google.common.hash.Hashing;
+import info.yangguo.yfs.common.po.FileEvent;
+import info.yangguo.yfs.config.ClusterProperties;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * 副本数小于group节点数时，上传节点加上按照rendezvous hash选出的其他节点组成副本集合。
+ * 副本集合以r开头的一段写在文件名中，节点id之间用-分隔，如0110011536719318000.r1-3-11.jpg，gateway不需要元数据就可以只路由到副本节点。
+ */
+public class ReplicaService {
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("r\\d+(-\\d+)*");
+    private static final String SEPARATOR = "-";
+
+    /**
+     * 是否只在部分节点上保存副本
+     *
+     * @param clusterProperties
+     * @return
+     */
+    public static boolean isEnabled(ClusterProperties clusterProperties) {
+        int replicas = clusterProperties.getStore().getReplicas();
+        return replicas > 0 && replicas < clusterProperties.getStore().getNode().size();
+    }
+
+    /**
+     * 为新文件选择副本节点，生成文件名中的副本段
+     *
+     * @param clusterProperties
+     * @param id                IdMaker生成的文件id
+     * @return 不需要时返回null
+     */
+    public static String makeSegment(ClusterProperties clusterProperties, String id) {
+        if (!isEnabled(clusterProperties))
+            return null;
+        List<String> nodes = new ArrayList<>();
+        nodes.add(clusterProperties.getLocal());
+        clusterProperties.getStore().getNode().stream()
+                .map(ClusterProperties.ClusterNode::getId)
+                .filter(nodeId -> !nodeId.equals(clusterProperties.getLocal()))
+                .sorted(Comparator.comparingLong(nodeId -> -Hashing.murmur3_128().hashString(id + "-" + nodeId, StandardCharsets.UTF_8).asLong()))
+                .limit(clusterProperties.getStore().getReplicas() - 1)
+                .forEach(nodes::add);
+        return "r" + nodes.stream().sorted().collect(Collectors.joining(SEPARATOR));
+    }
+
+    /**
+     * 从文件名中解析副本节点
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @return 所有节点都保存副本时返回空集合
+     */
+    public static List<String> getTargetNodes(ClusterProperties clusterProperties, String relativePath) {
+        List<String> nodes = new ArrayList<>();
+        if (!isEnabled(clusterProperties))
+            return nodes;
+        String[] parts = new File(relativePath).getName().split("\\.");
+        if (parts.length > 1 && SEGMENT_PATTERN.matcher(parts[1]).matches()) {
+            nodes.addAll(Arrays.asList(parts[1].substring(1).split(SEPARATOR)));
+        }
+        return nodes;
+    }
+
+    /**
+     * 需要持有该文件的节点，纠删码存储时是分配了shard的节点
+     *
+     * @param clusterProperties
+     * @param fileEvent
+     * @return
+     */
+    public static List<String> getHolders(ClusterProperties clusterProperties, FileEvent fileEvent) {
+        if (fileEvent.getErasureCode() != null)
+            return fileEvent.getErasureCode().getNodes();
+        if (fileEvent.getTargetNodes() != null && !fileEvent.getTargetNodes().isEmpty())
+            return fileEvent.getTargetNodes();
+        return clusterProperties.getStore().getNode().stream().map(ClusterProperties.ClusterNode::getId).collect(Collectors.toList());
+    }
+
+    /**
+     * 当前节点是否需要持有该文件
+     *
+     * @param clusterProperties
+     * @param fileEvent
+     * @return
+     */
+    public static boolean isHolder(ClusterProperties clusterProperties, FileEvent fileEvent) {
+        return getHolders(clusterProperties, fileEvent).contains(clusterProperties.getLocal());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * 待同步文件的本地日志，只追加：入队时写"+路径"，同步结束时写"-路径"。
+ * 启动时重放得到重启前没有完成的同步，记录数远大于未完成的数量时重写日志。
+ */
+public class ReplicationJournal {
+    private static Logger logger = LoggerFactory.getLogger(ReplicationJournal.class);
+    private static final char ADD = '+';
+    private static final char REMOVE = '-';
+    private final File file;
+    private Writer writer;
+    private long records;
+    /**
+     * 上次检查是否需要重写时的记录数
+     */
+    private long checked;
+
+    /**
+     * 打开日志，并返回未完成的同步
+     *
+     * @param file
+     * @param pending 重放的结果
+     * @throws IOException
+     */
+    public ReplicationJournal(File file, Set<String> pending) throws IOException {
+        this.file = file;
+        file.getParentFile().mkdirs();
+        if (file.exists()) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    //进程退出时最后一行可能不完整，重新提交时找不到对应的元数据，会被忽略
+                    if (line.length() < 2)
+                        continue;
+                    if (line.charAt(0) == ADD)
+                        pending.add(line.substring(1));
+                    else if (line.charAt(0) == REMOVE)
+                        pending.remove(line.substring(1));
+                }
+            }
+        }
+        rewrite(pending);
+    }
+
+    public synchronized void add(String relativePath) {
+        write(ADD, relativePath);
+    }
+
+    /**
+     * @param relativePath
+     * @param live         当前未完成的同步，日志过大时用来重写
+     */
+    public synchronized void remove(String relativePath, Supplier<Collection<String>> live) {
+        write(REMOVE, relativePath);
+        //每1000条检查一次，避免每次都遍历未完成的同步
+        if (records > 10000 && records - checked >= 1000) {
+            checked = records;
+            Collection<String> unfinished = live.get();
+            if (records <= unfinished.size() * 4L)
+                return;
+            try {
+                rewrite(unfinished);
+            } catch (IOException e) {
+                logger.warn("Failed to rewrite replication journal {}", file, e);
+            }
+        }
+    }
+
+    private void write(char type, String relativePath) {
+        try {
+            writer.write(type);
+            writer.write(relativePath);
+            writer.write('\n');
+            //只需要在进程重启后可见，不需要fsync
+            writer.flush();
+            records++;
+        } catch (IOException e) {
+            logger.warn("Failed to write replication journal {}", file, e);
+        }
+    }
+
+    private void rewrite(Collection<String> live) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer tmpWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (String relativePath : live) {
+                tmpWriter.write(ADD);
+                tmpWriter.write(relativePath);
+                tmpWriter.write('\n');
+            }
+        }
+        if (writer != null)
+            writer.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        records = live.size();
+        checked = records;
+    }
+}
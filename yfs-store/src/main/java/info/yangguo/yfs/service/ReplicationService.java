@@ -0,0 +1,271 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import info.yangguo.yfs.common.utils.IdMaker;
+import info.yangguo.yfs.config.ClusterProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * 文件同步不在Atomix的event线程中执行，而是按照源节点放入各自的线程池，event线程只负责入队。
+ * 队列按照优先级排序：小文件优先，同一类中新上传的文件优先。每个源节点排队的任务数有上限，
+ * 超出时直接丢弃，由Watchdog.watchFile定期重新触发同步。
+ * 队列长度、执行中的任务数、丢弃次数以及同步耗时通过JMX(domain为yfs)暴露。
+ * 入队和完成都记录在本地的ReplicationJournal中，重启之后从中断的地方继续，不需要等待watchdog扫描。
+ * 源节点支持ReplicationTransport时，线程取到小文件任务后会把队列中同一个节点的其他小文件一起取出，
+ * 通过一次请求批量拉取数据，之后再逐个执行各自的任务更新元数据。
+ */
+public class ReplicationService {
+    private static Logger logger = LoggerFactory.getLogger(ReplicationService.class);
+    public static final MetricRegistry metrics = new MetricRegistry();
+    private static final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    /**
+     * 排队或者正在同步的文件，重复的event不再入队
+     */
+    private static final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+    /**
+     * 同步失败的文件，日志中保留记录，重启之后继续同步
+     */
+    private static final Set<String> failed = ConcurrentHashMap.newKeySet();
+    private static final Meter rejected = metrics.meter("replication.rejected");
+    private static final AtomicLong sequence = new AtomicLong();
+    private static volatile ReplicationJournal journal;
+
+    static {
+        JmxReporter.forRegistry(metrics).inDomain("yfs").build().start();
+    }
+
+    private static class Peer {
+        private final ThreadPoolExecutor executor;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final Timer timer;
+        private final Histogram batch;
+
+        private Peer(String node, int threads) {
+            this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "replication-" + node + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.timer = metrics.timer("replication." + node + ".sync");
+            this.batch = metrics.histogram("replication." + node + ".batch");
+            metrics.register("replication." + node + ".queued", (Gauge<Integer>) queued::get);
+            metrics.register("replication." + node + ".running", (Gauge<Integer>) running::get);
+        }
+    }
+
+    private static class Task implements Runnable, Comparable<Task> {
+        private final ClusterProperties clusterProperties;
+        private final String node;
+        private final Peer peer;
+        private final String relativePath;
+        private final BooleanSupplier runnable;
+        private final boolean small;
+        private final boolean batchable;
+        private final long timestamp;
+        private final long sequence;
+
+        private Task(ClusterProperties clusterProperties, String node, Peer peer, String relativePath, boolean small, boolean batchable, long timestamp, BooleanSupplier runnable) {
+            this.clusterProperties = clusterProperties;
+            this.node = node;
+            this.peer = peer;
+            this.relativePath = relativePath;
+            this.small = small;
+            this.batchable = batchable;
+            this.timestamp = timestamp;
+            this.sequence = ReplicationService.sequence.incrementAndGet();
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            List<Task> tasks = batchable && small ? drain() : Collections.emptyList();
+            try {
+                if (!tasks.isEmpty()) {
+                    List<String> relativePaths = new ArrayList<>();
+                    relativePaths.add(relativePath);
+                    tasks.forEach(task -> relativePaths.add(task.relativePath));
+                    peer.batch.update(relativePaths.size());
+                    try {
+                        ReplicationTransport.store(clusterProperties, relativePaths, getNode(clusterProperties, node));
+                    } catch (RuntimeException e) {
+                        logger.warn("Failed to sync batch from {}, fall back to single sync", node, e);
+                    }
+                }
+                execute();
+            } finally {
+                //批量拉取失败的文件在各自的任务中单独同步，取出的任务无论如何都要执行，否则会一直留在pending及日志中
+                tasks.forEach(Task::execute);
+            }
+        }
+
+        /**
+         * 从队列中取出同一个节点的其他小文件任务，由当前线程执行
+         */
+        private List<Task> drain() {
+            int batchSize = clusterProperties.getStore().getReplication().getBatch_size();
+            ClusterProperties.ClusterNode clusterNode = getNode(clusterProperties, node);
+            if (batchSize <= 1 || node.equals(clusterProperties.getLocal()) || clusterNode == null || !ReplicationTransport.isEnabled(clusterNode))
+                return Collections.emptyList();
+            List<Task> tasks = new ArrayList<>();
+            BlockingQueue<Runnable> queue = peer.executor.getQueue();
+            while (tasks.size() < batchSize - 1) {
+                Runnable head = queue.peek();
+                if (!(head instanceof Task) || !((Task) head).batchable || !((Task) head).small)
+                    break;
+                //其他线程可能同时取走了该任务
+                if (queue.remove(head))
+                    tasks.add((Task) head);
+            }
+            return tasks;
+        }
+
+        private void execute() {
+            peer.queued.decrementAndGet();
+            peer.running.incrementAndGet();
+            boolean done = false;
+            try (Timer.Context ignored = peer.timer.time()) {
+                done = runnable.getAsBoolean();
+            } catch (Exception e) {
+                logger.warn("Failed to replicate {}", relativePath, e);
+            } finally {
+                peer.running.decrementAndGet();
+                //先写日志再释放pending，并发提交的"+"不会被这里的"-"抵消
+                if (done) {
+                    failed.remove(relativePath);
+                    if (journal != null)
+                        journal.remove(relativePath, () -> live(relativePath));
+                } else {
+                    failed.add(relativePath);
+                }
+                pending.remove(relativePath);
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (small != other.small)
+                return small ? -1 : 1;
+            if (timestamp != other.timestamp)
+                return timestamp > other.timestamp ? -1 : 1;
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * 提交同步任务，只做入队，不会阻塞
+     *
+     * @param clusterProperties
+     * @param node              源节点
+     * @param relativePath
+     * @param size              文件大小，未知时为0
+     * @param batchable         是否可以和其他小文件合并拉取
+     * @param runnable          返回false表示同步失败，日志中的记录会保留
+     * @return 队列已满或者该文件已经在队列中时返回false
+     */
+    public static boolean submit(ClusterProperties clusterProperties, String node, String relativePath, long size, boolean batchable, BooleanSupplier runnable) {
+        ClusterProperties.Replication replication = clusterProperties.getStore().getReplication();
+        if (pending.putIfAbsent(relativePath, Boolean.TRUE) != null)
+            return false;
+        Peer peer = peers.computeIfAbsent(node, key -> new Peer(key, replication.getThreads()));
+        if (peer.queued.incrementAndGet() > replication.getMax_pending()) {
+            peer.queued.decrementAndGet();
+            pending.remove(relativePath);
+            rejected.mark();
+            logger.warn("Replication queue of {} is full, {} will be resynced by watchdog", node, relativePath);
+            return false;
+        }
+        if (journal != null)
+            journal.add(relativePath);
+        peer.executor.execute(new Task(clusterProperties, node, peer, relativePath, size < replication.getSmall_size(), batchable, getTimestamp(relativePath), runnable));
+        return true;
+    }
+
+    /**
+     * 打开日志，重新提交重启之前没有完成的同步
+     *
+     * @param file
+     * @param resubmit 根据文件路径重新提交同步
+     * @throws IOException
+     */
+    public static synchronized void recover(File file, Consumer<String> resubmit) throws IOException {
+        if (journal != null)
+            return;
+        Set<String> unfinished = new LinkedHashSet<>();
+        journal = new ReplicationJournal(file, unfinished);
+        logger.info("Recover {} replication tasks from {}", unfinished.size(), file);
+        unfinished.forEach(relativePath -> {
+            try {
+                resubmit.accept(relativePath);
+            } catch (Exception e) {
+                logger.warn("Failed to recover replication of {}", relativePath, e);
+            }
+        });
+    }
+
+    /**
+     * 需要保留在日志中的文件：排队中、同步中以及同步失败的文件
+     *
+     * @param finished 刚刚完成同步的文件
+     */
+    private static Set<String> live(String finished) {
+        Set<String> live = new HashSet<>(pending.keySet());
+        live.addAll(failed);
+        live.remove(finished);
+        return live;
+    }
+
+    private static ClusterProperties.ClusterNode getNode(ClusterProperties clusterProperties, String node) {
+        return clusterProperties.getStore().getNode().stream()
+                .filter(clusterNode -> clusterNode.getId().equals(node))
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * 文件名中IdMaker生成的时间戳
+     */
+    private static long getTimestamp(String relativePath) {
+        try {
+            String id = new File(relativePath).getName().split("\\.")[0];
+            return Long.parseLong(IdMaker.INSTANCE.split(id)[3]);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
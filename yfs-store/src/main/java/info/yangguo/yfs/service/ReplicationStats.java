@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import info.yangguo.yfs.config.ClusterProperties;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * 记录与每个节点之间的复制延迟和吞吐(EWMA)，用来估算上传请求等待副本确认的时间。
+ * 样本只来自本节点上传的文件被其他节点确认的耗时，和等待确认的语义一致；副本节点拉取文件的耗时不计入。
+ */
+public class ReplicationStats {
+    private static final double ALPHA = 0.2;
+    /**
+     * 小于该值的样本只用来估算延迟
+     */
+    private static final long LATENCY_SAMPLE_SIZE = 64 * 1024;
+    /**
+     * 估算值乘以该系数作为等待时间，给抖动留出余量
+     */
+    private static final int FACTOR = 3;
+    private static final Map<String, Stat> stats = new ConcurrentHashMap<>();
+
+    private static class Stat {
+        /**
+         * 毫秒
+         */
+        private double latency = -1;
+        /**
+         * 字节/毫秒
+         */
+        private double throughput = -1;
+
+        private synchronized void update(long bytes, long millis) {
+            if (bytes < LATENCY_SAMPLE_SIZE || latency < 0) {
+                latency = latency < 0 ? millis : latency + ALPHA * (millis - latency);
+                if (bytes < LATENCY_SAMPLE_SIZE)
+                    return;
+            }
+            double sample = bytes / (double) Math.max(1, millis - latency);
+            throughput = throughput < 0 ? sample : throughput + ALPHA * (sample - throughput);
+        }
+
+        private synchronized double estimate(long bytes) {
+            if (latency < 0 || (bytes >= LATENCY_SAMPLE_SIZE && throughput < 0))
+                return Double.MAX_VALUE;
+            return latency + (bytes >= LATENCY_SAMPLE_SIZE ? bytes / throughput : 0);
+        }
+    }
+
+    /**
+     * @param node   对端节点
+     * @param bytes  复制的字节数
+     * @param millis 耗时
+     */
+    public static void record(String node, long bytes, long millis) {
+        stats.computeIfAbsent(node, key -> new Stat()).update(bytes, millis);
+    }
+
+    /**
+     * 等待acks个节点确认需要的时间，没有样本的节点按照yfs.store.qos_max_time计算
+     *
+     * @param clusterProperties
+     * @param nodes             需要同步的节点
+     * @param bytes             文件大小
+     * @param acks              需要确认的节点数
+     * @return 毫秒，介于yfs.store.qos_min_time和yfs.store.qos_max_time之间
+     */
+    public static long getTimeout(ClusterProperties clusterProperties, List<String> nodes, long bytes, int acks) {
+        long min = clusterProperties.getStore().getQos_min_time() * 1000L;
+        long max = clusterProperties.getStore().getQos_max_time() * 1000L;
+        if (acks <= 0)
+            return min;
+        List<Double> estimates = nodes.stream()
+                .map(node -> {
+                    Stat stat = stats.get(node);
+                    return stat == null ? Double.MAX_VALUE : stat.estimate(bytes);
+                })
+                .sorted()
+                .collect(Collectors.toList());
+        if (estimates.size() < acks)
+            return max;
+        return Math.max(min, Math.min(max, (long) (estimates.get(acks - 1) * FACTOR)));
+    }
+}
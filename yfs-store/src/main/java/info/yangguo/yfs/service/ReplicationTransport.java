@@ -0,0 +1,413 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import com.google.common.collect.Maps;
+import info.yangguo.yfs.common.CommonConstant;
+import info.yangguo.yfs.config.ClusterProperties;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.ipfilter.AbstractRemoteAddressFilter;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Collectors;
+
+/**
+ * 节点之间同步文件的二进制协议，使用独立的端口(yfs.store.node[n].replication_port)，不和用户请求竞争Tomcat的线程。
+ * 请求：[int 长度][相对路径，多个路径之间用换行分隔]；
+ * 响应：按照请求中路径的顺序依次返回每个文件，每个文件为[int 元数据个数]{[int 长度][key][int 长度][value]}[long 数据长度，-1表示不存在][磁盘上的原始数据]。
+ * 发送端使用FileRegion零拷贝；接收端的连接按照节点复用，多个文件依次在同一个连接上传输。
+ * 接收端仍然经过FileService.store写入，一次遍历同时完成crc32校验，而不是transferFrom之后再读一遍。
+ */
+public class ReplicationTransport {
+    private static Logger logger = LoggerFactory.getLogger(ReplicationTransport.class);
+    private static final int MAX_REQUEST_LENGTH = 1024 * 1024;
+    private static final String PATH_SEPARATOR = "\n";
+    private static final int SO_TIMEOUT = 60 * 1000;
+    private static final Map<String, BlockingQueue<Connection>> connections = new ConcurrentHashMap<>();
+    private static volatile Channel serverChannel;
+
+    /**
+     * 启动当前节点的同步服务，没有配置replication_port时不启动
+     *
+     * @param clusterProperties
+     */
+    public static synchronized void start(ClusterProperties clusterProperties) {
+        if (serverChannel != null)
+            return;
+        ClusterProperties.ClusterNode local = clusterProperties.getStore().getNode().stream()
+                .filter(node -> node.getId().equals(clusterProperties.getLocal()))
+                .findFirst()
+                .orElse(null);
+        if (local == null || local.getReplication_port() <= 0)
+            return;
+        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
+        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        //读取xattr及volume会阻塞，不在IO线程中执行
+        EventExecutorGroup executorGroup = new DefaultEventExecutorGroup(Runtime.getRuntime().availableProcessors());
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        //同步接口直接读取磁盘上的数据，在解析请求之前拒绝集群之外的连接
+                        ch.pipeline()
+                                .addLast(new PeerFilter(clusterProperties))
+                                .addLast(new LengthFieldBasedFrameDecoder(MAX_REQUEST_LENGTH + 4, 0, 4, 0, 4))
+                                .addLast(executorGroup, new RequestHandler(clusterProperties));
+                    }
+                });
+        serverChannel = bootstrap.bind(local.getReplication_port()).syncUninterruptibly().channel();
+        serverChannel.closeFuture().addListener(future -> {
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+            executorGroup.shutdownGracefully();
+        });
+        logger.info("Replication transport is listening on {}", local.getReplication_port());
+    }
+
+    public static boolean isEnabled(ClusterProperties.ClusterNode node) {
+        return node.getReplication_port() > 0;
+    }
+
+    /**
+     * 从其他节点同步文件
+     *
+     * @param clusterProperties
+     * @param relativePath
+     * @param node              源节点
+     * @throws IOException
+     */
+    public static void store(ClusterProperties clusterProperties, String relativePath, ClusterProperties.ClusterNode node) throws IOException {
+        if (FileService.runningFile.putIfAbsent(relativePath, new Date().getTime()) != null) {
+            logger.debug("{} in sync", relativePath);
+            return;
+        }
+        try {
+            if (FileService.exists(clusterProperties, relativePath))
+                return;
+            Connection connection = send(node, Collections.singletonList(relativePath));
+            boolean reusable = false;
+            try {
+                long length = receive(clusterProperties, relativePath, connection);
+                reusable = true;
+                if (length < 0)
+                    throw new FileNotFoundException(relativePath + " is not found in " + node.getId());
+                logger.debug("Success to store {}", relativePath);
+            } finally {
+                if (reusable)
+                    release(node, connection);
+                else
+                    connection.close();
+            }
+        } finally {
+            FileService.runningFile.remove(relativePath);
+        }
+    }
+
+    /**
+     * 通过一次请求从同一个节点同步多个文件，每个文件单独校验crc32，失败的文件不影响其他文件
+     *
+     * @param clusterProperties
+     * @param relativePaths
+     * @param node              源节点
+     * @return 成功写入本地的文件
+     */
+    public static Set<String> store(ClusterProperties clusterProperties, List<String> relativePaths, ClusterProperties.ClusterNode node) {
+        Set<String> stored = new HashSet<>();
+        List<String> claimed = new ArrayList<>();
+        for (String relativePath : relativePaths) {
+            if (FileService.runningFile.putIfAbsent(relativePath, new Date().getTime()) == null)
+                claimed.add(relativePath);
+        }
+        try {
+            List<String> missing = claimed.stream()
+                    .filter(relativePath -> !FileService.exists(clusterProperties, relativePath))
+                    .collect(Collectors.toList());
+            if (missing.isEmpty())
+                return stored;
+            Connection connection = send(node, missing);
+            boolean reusable = false;
+            try {
+                for (String relativePath : missing) {
+                    try {
+                        long length = receive(clusterProperties, relativePath, connection);
+                        if (length >= 0) {
+                            stored.add(relativePath);
+                        }
+                    } catch (RuntimeException e) {
+                        logger.warn("Failed to store {} in batch", relativePath, e);
+                    }
+                }
+                reusable = true;
+            } finally {
+                if (reusable)
+                    release(node, connection);
+                else
+                    connection.close();
+            }
+        } catch (IOException e) {
+            //没有写入的文件由各自的同步任务单独拉取
+            logger.warn("Failed to sync batch from {}, {}/{} files stored", node.getId(), stored.size(), relativePaths.size(), e);
+        } finally {
+            claimed.forEach(FileService.runningFile::remove);
+        }
+        return stored;
+    }
+
+    /**
+     * 发送请求，复用的连接可能已经被对端关闭，这时重新建立连接再发送一次
+     */
+    private static Connection send(ClusterProperties.ClusterNode node, List<String> relativePaths) throws IOException {
+        Connection connection = borrow(node);
+        try {
+            connection.writeRequest(relativePaths);
+            connection.awaitResponse();
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            if (!connection.pooled)
+                throw e;
+        }
+        connection = new Connection(node);
+        try {
+            connection.writeRequest(relativePaths);
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 读取一个文件的响应并写入本地，返回之后连接可以继续读取下一个文件
+     *
+     * @return 数据长度，对端不存在该文件时返回-1
+     * @throws IOException 连接异常或者写入失败，连接不能继续使用
+     */
+    private static long receive(ClusterProperties clusterProperties, String relativePath, Connection connection) throws IOException {
+        Map<String, String> metas = connection.readMetas();
+        long length = connection.in.readLong();
+        if (length < 0)
+            return length;
+        Map<String, String> systemMetas = Maps.newHashMap();
+        Map<String, String> userMetas = Maps.newHashMap();
+        metas.forEach((key, value) -> {
+            if (key.equals(CommonConstant.CODEC) || key.equals(CommonConstant.CRC32) || key.equals(CommonConstant.SHA256) || key.equals(CommonConstant.MD5))
+                systemMetas.put(key, value);
+            else if (!key.equals(TierService.TIER))
+                userMetas.put(key, value);
+        });
+        BoundedInputStream content = new BoundedInputStream(connection.in, length);
+        content.setPropagateClose(false);
+        try {
+            FileService.store(clusterProperties, relativePath, content, systemMetas, userMetas, false, IoScheduler.Priority.REPLICATION, systemMetas.containsKey(CommonConstant.CODEC));
+            DedupService.register(clusterProperties, relativePath);
+        } finally {
+            //crc32不一致时数据已经读完，其余情况跳过没有读取的部分
+            IOUtils.skip(content, Long.MAX_VALUE);
+        }
+        return length;
+    }
+
+    private static Connection borrow(ClusterProperties.ClusterNode node) throws IOException {
+        Connection connection = connections.computeIfAbsent(address(node), key -> new LinkedBlockingQueue<>()).poll();
+        return connection != null ? connection : new Connection(node);
+    }
+
+    private static void release(ClusterProperties.ClusterNode node, Connection connection) {
+        connection.pooled = true;
+        connections.computeIfAbsent(address(node), key -> new LinkedBlockingQueue<>()).offer(connection);
+    }
+
+    private static String address(ClusterProperties.ClusterNode node) {
+        return node.getIp() + ":" + node.getReplication_port();
+    }
+
+    private static class Connection implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        /**
+         * 是否是从连接池中取出的连接
+         */
+        private boolean pooled;
+
+        private Connection(ClusterProperties.ClusterNode node) throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(node.getIp(), node.getReplication_port()), SO_TIMEOUT);
+            socket.setSoTimeout(SO_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        private void writeRequest(List<String> relativePaths) throws IOException {
+            byte[] paths = String.join(PATH_SEPARATOR, relativePaths).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(paths.length);
+            out.write(paths);
+            out.flush();
+        }
+
+        /**
+         * 等待响应的第一个字节，连接已经被对端关闭时抛出EOFException
+         */
+        private void awaitResponse() throws IOException {
+            in.mark(1);
+            if (in.read() == -1)
+                throw new EOFException("Connection is closed by peer");
+            in.reset();
+        }
+
+        private Map<String, String> readMetas() throws IOException {
+            Map<String, String> metas = Maps.newHashMap();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                metas.put(readString(), readString());
+            }
+            return metas;
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close connection", e);
+            }
+        }
+    }
+
+    private static class RequestHandler extends SimpleChannelInboundHandler<ByteBuf> {
+        private final ClusterProperties clusterProperties;
+
+        private RequestHandler(ClusterProperties clusterProperties) {
+            this.clusterProperties = clusterProperties;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+            String[] relativePaths = msg.toString(StandardCharsets.UTF_8).split(PATH_SEPARATOR);
+            for (String relativePath : relativePaths) {
+                if (relativePath.contains("..")) {
+                    ctx.close();
+                    return;
+                }
+            }
+            //按照请求的顺序依次写出，最后统一flush
+            for (String relativePath : relativePaths) {
+                write(ctx, relativePath);
+            }
+            ctx.flush();
+        }
+
+        private void write(ChannelHandlerContext ctx, String relativePath) throws IOException {
+            Pair<Map<String, String>, ByteBuffer> needle = VolumeService.read(clusterProperties, relativePath, IoScheduler.Priority.REPLICATION);
+            if (needle != null) {
+                ByteBuf header = writeMetas(ctx, needle.getKey());
+                header.writeLong(needle.getValue().remaining());
+                ctx.write(header);
+                ctx.write(ctx.alloc().buffer(needle.getValue().remaining()).writeBytes(needle.getValue()));
+                return;
+            }
+            String fullPath = FileService.getFullPath(clusterProperties, relativePath);
+            FileChannel fileChannel;
+            Map<String, String> metas;
+            try {
+                fileChannel = FileChannel.open(Paths.get(fullPath), StandardOpenOption.READ);
+                metas = FileAttributes.getAllXattr(fullPath);
+            } catch (IOException e) {
+                ByteBuf header = ctx.alloc().buffer(12);
+                header.writeInt(0);
+                header.writeLong(-1);
+                ctx.write(header);
+                return;
+            }
+            ByteBuf header = writeMetas(ctx, metas);
+            header.writeLong(fileChannel.size());
+            ctx.write(header);
+            //FileRegion写完之后会关闭fileChannel
+            ctx.write(new DefaultFileRegion(fileChannel, 0, fileChannel.size()));
+        }
+
+        private ByteBuf writeMetas(ChannelHandlerContext ctx, Map<String, String> metas) {
+            ByteBuf header = ctx.alloc().buffer();
+            header.writeInt(metas.size());
+            metas.forEach((key, value) -> {
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+                header.writeInt(keyBytes.length).writeBytes(keyBytes);
+                header.writeInt(valueBytes.length).writeBytes(valueBytes);
+            });
+            return header;
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.warn("Replication transport error", cause);
+            ctx.close();
+        }
+    }
+
+    private static class PeerFilter extends AbstractRemoteAddressFilter<InetSocketAddress> {
+        private final ClusterProperties clusterProperties;
+
+        private PeerFilter(ClusterProperties clusterProperties) {
+            this.clusterProperties = clusterProperties;
+        }
+
+        @Override
+        protected boolean accept(ChannelHandlerContext ctx, InetSocketAddress remoteAddress) {
+            return PeerService.isPeer(clusterProperties, remoteAddress.getAddress().getHostAddress());
+        }
+
+        @Override
+        protected ChannelFuture channelRejected(ChannelHandlerContext ctx, InetSocketAddress remoteAddress) {
+            logger.warn("Reject replication connection from {}", remoteAddress);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.RateLimiter;
+import info.yangguo.yfs.config.ClusterProperties;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * 冷热分层：新文件写入热数据层，超过yfs.store.tier.cool_down没有被访问的文件由后台迁移到容量层。
+ * 访问时间记录在内存中，重启之后以文件的修改时间(即上传时间)为准。
+ */
+public class TierService {
+    private static Logger logger = LoggerFactory.getLogger(TierService.class);
+    /**
+     * 文件所在的层，迁移时写入xattr
+     */
+    public static final String TIER = "tier";
+    public static final String COLD = "cold";
+    private static final Cache<String, Long> accessTimes = CacheBuilder.newBuilder().maximumSize(1000000).build();
+
+    public static boolean isEnabled(ClusterProperties clusterProperties) {
+        return DiskService.getDisks(clusterProperties).stream().anyMatch(Disk::isHot)
+                && DiskService.getDisks(clusterProperties).stream().anyMatch(disk -> !disk.isHot());
+    }
+
+    /**
+     * 记录文件的访问时间
+     *
+     * @param relativePath
+     */
+    public static void touch(String relativePath) {
+        accessTimes.put(relativePath, System.currentTimeMillis());
+    }
+
+    /**
+     * 将热数据层中已经冷却的文件迁移到容量层
+     *
+     * @param clusterProperties
+     * @throws IOException
+     */
+    public static void migrate(ClusterProperties clusterProperties) throws IOException {
+        if (!isEnabled(clusterProperties))
+            return;
+        ClusterProperties.Tier tier = clusterProperties.getStore().getTier();
+        long deadline = System.currentTimeMillis() - tier.getCool_down() * 1000;
+        RateLimiter rateLimiter = RateLimiter.create(tier.getMigrate_rate());
+        List<Disk> coldDisks = DiskService.getDisks(clusterProperties).stream().filter(disk -> !disk.isHot()).collect(Collectors.toList());
+        for (Disk disk : DiskService.getDisks(clusterProperties)) {
+            if (!disk.isHot())
+                continue;
+            Files.walkFileTree(Paths.get(disk.getPath()), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    //.upload、.volume等隐藏目录的位置由DiskService决定，不参与迁移
+                    return Files.isHidden(dir) ? FileVisitResult.SKIP_SUBTREE : super.preVisitDirectory(dir, attrs);
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (Files.isHidden(file) || !attrs.isRegularFile())
+                        return FileVisitResult.CONTINUE;
+                    String relativePath = FileService.getRelativePath(clusterProperties, file.toString());
+                    Long accessTime = accessTimes.getIfPresent(relativePath);
+                    if (Math.max(accessTime == null ? 0 : accessTime, attrs.lastModifiedTime().toMillis()) > deadline)
+                        return FileVisitResult.CONTINUE;
+                    //去重产生的硬链接只能在同一块盘上，迁移会破坏共享
+                    if ((Integer) Files.getAttribute(file, "unix:nlink") > 1)
+                        return FileVisitResult.CONTINUE;
+                    rateLimiter.acquire((int) Math.min(Integer.MAX_VALUE, Math.max(1, attrs.size())));
+                    try {
+                        move(clusterProperties, relativePath, disk, coldDisks);
+                    } catch (Exception e) {
+                        logger.warn("Failed to migrate {}", relativePath, e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+
+    /**
+     * 先拷贝到容量层的临时文件，持久化之后rename到最终路径，再删除热数据层的文件
+     */
+    private static void move(ClusterProperties clusterProperties, String relativePath, Disk from, List<Disk> coldDisks) throws IOException {
+        if (FileService.runningFile.putIfAbsent(relativePath, new Date().getTime()) != null)
+            return;
+        try {
+            Disk to = coldDisks.stream().max((a, b) -> Long.compare(a.getFreeSpace(), b.getFreeSpace())).get();
+            Path source = Paths.get(from.getPath(), relativePath);
+            Path target = Paths.get(to.getPath(), relativePath);
+            Path tmp = target.resolveSibling("." + target.getFileName() + ".tmp");
+            Files.createDirectories(target.getParent());
+            Map<String, String> metas = FileAttributes.getAllXattr(source.toString());
+            try {
+                byte[] buff = BufferPool.acquire();
+                try (InputStream inputStream = from.newInputStream(source, IoScheduler.Priority.SCRUB);
+                     OutputStream outputStream = to.newOutputStream(tmp, IoScheduler.Priority.SCRUB)) {
+                    IOUtils.copyLarge(inputStream, outputStream, buff);
+                } finally {
+                    BufferPool.release(buff);
+                }
+                FileAttributes.setXattr(metas, tmp.toString());
+                FileAttributes.setXattr(Collections.singletonMap(TIER, COLD), tmp.toString());
+                GroupCommitService.commit(clusterProperties, tmp, target);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            DiskService.assign(clusterProperties, relativePath, to);
+            Files.deleteIfExists(source);
+            logger.debug("{} is migrated from {} to {}", relativePath, from.getPath(), to.getPath());
+        } finally {
+            FileService.runningFile.remove(relativePath);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import com.google.common.collect.Maps;
+import info.yangguo.yfs.common.CommonConstant;
+import info.yangguo.yfs.common.po.FileEvent;
+import info.yangguo.yfs.common.utils.JsonUtil;
+import info.yangguo.yfs.config.ClusterProperties;
+import info.yangguo.yfs.po.UploadPart;
+import info.yangguo.yfs.po.UploadSession;
+import info.yangguo.yfs.util.CRC32Utils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * 断点续传：创建会话，按offset逐个上传chunk或者并发上传多个分片，最后commit。未commit的数据保存在数据目录的.upload目录中，
+ * 只有commit之后文件才会出现在最终路径，才会发布FileEvent。
+ */
+public class UploadService {
+    private static Logger logger = LoggerFactory.getLogger(UploadService.class);
+    public static final String SESSION_DIR = ".upload";
+    private static final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * 创建上传会话
+     *
+     * @param clusterProperties
+     * @param size               文件总大小，-1表示未知
+     * @param httpServletRequest
+     * @return
+     * @throws IOException
+     */
+    public static UploadSession create(ClusterProperties clusterProperties, long size, HttpServletRequest httpServletRequest) throws IOException {
+        String relativePath = FileService.makeRelativePath(clusterProperties, httpServletRequest.getHeader(CommonConstant.xFileNameHeader));
+        long now = new Date().getTime();
+        UploadSession uploadSession = new UploadSession();
+        //会话id只取IdMaker生成的id，不包含副本段及扩展名，gateway按照id路由到创建会话的store
+        uploadSession.setId(StringUtils.substringBefore(FilenameUtils.getName(relativePath), "."));
+        uploadSession.setRelativePath(relativePath);
+        uploadSession.setSize(size);
+        uploadSession.setCreateTime(now);
+        uploadSession.setUpdateTime(now);
+        uploadSession.setUserMetas(FileService.getUserMetas(httpServletRequest));
+
+        File partFile = getPartFile(clusterProperties, uploadSession.getId());
+        FileUtils.forceMkdir(partFile.getParentFile());
+        if (!partFile.createNewFile()) {
+            throw new IOException("Upload session " + uploadSession.getId() + " already exists");
+        }
+        save(clusterProperties, uploadSession);
+        sessions.put(uploadSession.getId(), uploadSession);
+        FileService.runningFile.put(relativePath, now);
+        logger.debug("Success to create upload session {}", uploadSession.getId());
+        return uploadSession;
+    }
+
+    /**
+     * 获取上传会话，内存中没有的时候从磁盘加载，比如store重启之后。
+     *
+     * @param clusterProperties
+     * @param id
+     * @return 会话不存在时返回null
+     */
+    public static UploadSession get(ClusterProperties clusterProperties, String id) {
+        return sessions.computeIfAbsent(id, key -> {
+            UploadSession uploadSession = load(clusterProperties, key);
+            if (uploadSession != null)
+                FileService.runningFile.putIfAbsent(uploadSession.getRelativePath(), new Date().getTime());
+            return uploadSession;
+        });
+    }
+
+    /**
+     * 在offset位置写入一个chunk
+     *
+     * @param clusterProperties
+     * @param id
+     * @param offset        chunk的起始位置，必须等于会话当前的offset
+     * @param inputStream
+     * @param contentLength chunk的大小，-1表示未知
+     * @param clientCrc32   chunk的crc32，为空时不校验
+     * @return
+     * @throws IOException
+     */
+    public static UploadSession append(ClusterProperties clusterProperties, String id, long offset, InputStream inputStream, long contentLength, String clientCrc32) throws IOException {
+        UploadSession uploadSession = get(clusterProperties, id);
+        if (uploadSession == null) {
+            throw new IOException("Upload session " + id + " doesn't exist");
+        }
+        synchronized (uploadSession) {
+            if (!uploadSession.getParts().isEmpty()) {
+                throw new IllegalStateException("Upload session " + id + " is uploading in parts");
+            }
+            if (offset != uploadSession.getOffset()) {
+                throw new IllegalStateException("Upload session " + id + " expect offset " + uploadSession.getOffset() + " but " + offset);
+            }
+            CRC32 crc32 = new CRC32();
+            long length;
+            try (FileChannel fileChannel = FileChannel.open(getPartFile(clusterProperties, id).toPath(), StandardOpenOption.WRITE)) {
+                //丢弃上一次失败的chunk残留的数据
+                fileChannel.truncate(offset);
+                fileChannel.position(offset);
+                length = write(clusterProperties, fileChannel, inputStream, crc32);
+            }
+            verify(id, length, contentLength, crc32, clientCrc32);
+            if (uploadSession.getSize() >= 0 && offset + length > uploadSession.getSize()) {
+                throw new IOException("Upload session " + id + " exceeds the declared size " + uploadSession.getSize());
+            }
+            uploadSession.setCrc32(CRC32Utils.combine(uploadSession.getCrc32(), crc32.getValue(), length));
+            uploadSession.setOffset(offset + length);
+            uploadSession.setUpdateTime(new Date().getTime());
+            save(clusterProperties, uploadSession);
+            return uploadSession;
+        }
+    }
+
+    /**
+     * 上传一个分片，不同分片可以并发上传，commit的时候按照分片序号合并
+     *
+     * @param clusterProperties
+     * @param id
+     * @param partNumber        分片序号，从1开始
+     * @param inputStream
+     * @param contentLength     分片的大小，-1表示未知
+     * @param clientCrc32       分片的crc32，为空时不校验
+     * @return
+     * @throws IOException
+     */
+    public static UploadSession appendPart(ClusterProperties clusterProperties, String id, int partNumber, InputStream inputStream, long contentLength, String clientCrc32) throws IOException {
+        UploadSession uploadSession = get(clusterProperties, id);
+        if (uploadSession == null) {
+            throw new IOException("Upload session " + id + " doesn't exist");
+        }
+        if (partNumber < 1) {
+            throw new IllegalStateException("Part number of " + id + " must be greater than 0");
+        }
+        //提前检查，避免无效的上传，最终以加锁之后的检查为准
+        checkPartable(uploadSession);
+        //分片先写入临时文件，同一分片重复上传时互不干扰，以最后完成的为准
+        File partFile = getPartFile(clusterProperties, id, partNumber);
+        Path tmpPath = Files.createTempFile(partFile.getParentFile().toPath(), partFile.getName(), ".tmp");
+        try {
+            CRC32 crc32 = new CRC32();
+            long length;
+            try (FileChannel fileChannel = FileChannel.open(tmpPath, StandardOpenOption.WRITE)) {
+                length = write(clusterProperties, fileChannel, inputStream, crc32);
+            }
+            verify(id, length, contentLength, crc32, clientCrc32);
+            //检查和登记在同一把锁中完成，会话已经commit或者abort时临时文件在finally中删除，不会重新生成会话文件
+            synchronized (uploadSession) {
+                checkPartable(uploadSession);
+                Files.move(tmpPath, partFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                UploadPart uploadPart = new UploadPart();
+                uploadPart.setSize(length);
+                uploadPart.setCrc32(crc32.getValue());
+                uploadPart.setUpdateTime(new Date().getTime());
+                uploadSession.getParts().put(partNumber, uploadPart);
+                uploadSession.setUpdateTime(uploadPart.getUpdateTime());
+                save(clusterProperties, uploadSession);
+                return uploadSession;
+            }
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    private static void checkPartable(UploadSession uploadSession) throws IOException {
+        synchronized (uploadSession) {
+            if (sessions.get(uploadSession.getId()) != uploadSession) {
+                throw new IOException("Upload session " + uploadSession.getId() + " doesn't exist");
+            }
+            if (uploadSession.getOffset() > 0) {
+                throw new IllegalStateException("Upload session " + uploadSession.getId() + " is uploading in chunks");
+            }
+        }
+    }
+
+    /**
+     * 完成上传，把数据移动到最终路径并写入xattr
+     *
+     * @param clusterProperties
+     * @param id
+     * @return
+     * @throws IOException
+     */
+    public static Pair<String, FileEvent> commit(ClusterProperties clusterProperties, String id) throws IOException {
+        UploadSession uploadSession = get(clusterProperties, id);
+        if (uploadSession == null) {
+            throw new IOException("Upload session " + id + " doesn't exist");
+        }
+        synchronized (uploadSession) {
+            File partFile = getPartFile(clusterProperties, id);
+            Path source = partFile.toPath();
+            long offset = uploadSession.getOffset();
+            long crc32 = uploadSession.getCrc32();
+            Path composed = null;
+            try {
+                //分片合并到临时文件，校验失败时会话保持原样，可以补传分片之后再次commit
+                if (!uploadSession.getParts().isEmpty()) {
+                    composed = Files.createTempFile(partFile.getParentFile().toPath(), partFile.getName(), ".tmp");
+                    long[] result = compose(clusterProperties, uploadSession, composed);
+                    offset = result[0];
+                    crc32 = result[1];
+                    source = composed;
+                }
+                if (uploadSession.getSize() >= 0 && offset != uploadSession.getSize()) {
+                    throw new IllegalStateException("Upload session " + id + " is incomplete, expect " + uploadSession.getSize() + " bytes but " + offset);
+                }
+                try (FileChannel fileChannel = FileChannel.open(source, StandardOpenOption.WRITE)) {
+                    fileChannel.truncate(offset);
+                }
+                //rename不能跨盘，最终文件和会话目录放在同一块盘上
+                Disk disk = DiskService.locate(clusterProperties, SESSION_DIR);
+                File file = new File(disk.getPath() + File.separator + uploadSession.getRelativePath());
+                FileUtils.forceMkdir(file.getParentFile());
+                Map<String, String> systemMetas = Maps.newHashMap();
+                systemMetas.put(CommonConstant.CRC32, String.valueOf(crc32));
+                FileAttributes.setXattr(systemMetas, source.toString());
+                FileAttributes.setXattr(uploadSession.getUserMetas(), source.toString());
+                GroupCommitService.commit(clusterProperties, source, file.toPath());
+                DiskService.assign(clusterProperties, uploadSession.getRelativePath(), disk);
+            } finally {
+                if (composed != null)
+                    Files.deleteIfExists(composed);
+            }
+            if (composed != null)
+                FileUtils.deleteQuietly(partFile);
+            remove(clusterProperties, uploadSession);
+            logger.debug("Success to commit upload session {}", id);
+            return new ImmutablePair<>(uploadSession.getRelativePath(), new FileEvent());
+        }
+    }
+
+    /**
+     * 放弃上传
+     *
+     * @param clusterProperties
+     * @param id
+     * @return
+     */
+    public static boolean abort(ClusterProperties clusterProperties, String id) {
+        UploadSession uploadSession = get(clusterProperties, id);
+        if (uploadSession == null)
+            return false;
+        synchronized (uploadSession) {
+            FileUtils.deleteQuietly(getPartFile(clusterProperties, id));
+            remove(clusterProperties, uploadSession);
+        }
+        return true;
+    }
+
+    /**
+     * 清理长时间没有更新的会话
+     *
+     * @param clusterProperties
+     */
+    public static void cleanExpired(ClusterProperties clusterProperties) {
+        File sessionDir = new File(FileService.getFullPath(clusterProperties, SESSION_DIR));
+        File[] sessionFiles = sessionDir.listFiles((dir, name) -> name.endsWith(".json"));
+        if (sessionFiles == null)
+            return;
+        long expireTime = new Date().getTime() - clusterProperties.getStore().getUpload_session_expire() * 1000;
+        for (File sessionFile : sessionFiles) {
+            UploadSession uploadSession = get(clusterProperties, FilenameUtils.getBaseName(sessionFile.getName()));
+            if (uploadSession != null && uploadSession.getUpdateTime() < expireTime) {
+                logger.info("Upload session {} is expired", uploadSession.getId());
+                abort(clusterProperties, uploadSession.getId());
+            }
+        }
+    }
+
+    /**
+     * 按分片序号把所有分片合并到target中，合并使用transferTo在内核中完成，
+     * 整个文件的crc32由各分片的crc32合并得出，不需要重新读取数据。分片序号必须是从1开始连续的。
+     *
+     * @param clusterProperties
+     * @param uploadSession
+     * @param target
+     * @return 合并之后的大小及crc32
+     * @throws IOException
+     */
+    private static long[] compose(ClusterProperties clusterProperties, UploadSession uploadSession, Path target) throws IOException {
+        long crc32 = 0;
+        long position = 0;
+        int expected = 1;
+        try (FileChannel targetChannel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<Integer, UploadPart> entry : new TreeMap<>(uploadSession.getParts()).entrySet()) {
+                if (entry.getKey() != expected++) {
+                    throw new IllegalStateException("Upload session " + uploadSession.getId() + " is missing part " + (expected - 1));
+                }
+                UploadPart uploadPart = entry.getValue();
+                try (FileChannel source = FileChannel.open(getPartFile(clusterProperties, uploadSession.getId(), entry.getKey()).toPath(), StandardOpenOption.READ)) {
+                    if (source.size() != uploadPart.getSize()) {
+                        throw new IOException("Part " + entry.getKey() + " of " + uploadSession.getId() + " is damaged");
+                    }
+                    long transferred = 0;
+                    while (transferred < uploadPart.getSize()) {
+                        transferred += source.transferTo(transferred, uploadPart.getSize() - transferred, targetChannel);
+                    }
+                }
+                crc32 = CRC32Utils.combine(crc32, uploadPart.getCrc32(), uploadPart.getSize());
+                position += uploadPart.getSize();
+            }
+        }
+        return new long[]{position, crc32};
+    }
+
+    private static long write(ClusterProperties clusterProperties, FileChannel fileChannel, InputStream inputStream, CRC32 crc32) throws IOException {
+        Disk disk = DiskService.locate(clusterProperties, SESSION_DIR);
+        long length = 0;
+        byte[] buff = BufferPool.acquire();
+        try {
+            int read;
+            while ((read = inputStream.read(buff)) != -1) {
+                crc32.update(buff, 0, read);
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buff, 0, read);
+                try (IoScheduler.Permit permit = disk.getScheduler().acquire(IoScheduler.Priority.USER_WRITE)) {
+                    while (byteBuffer.hasRemaining()) {
+                        fileChannel.write(byteBuffer);
+                    }
+                }
+                length += read;
+            }
+        } finally {
+            BufferPool.release(buff);
+        }
+        return length;
+    }
+
+    private static void verify(String id, long length, long contentLength, CRC32 crc32, String clientCrc32) throws IOException {
+        if (contentLength >= 0 && length != contentLength) {
+            throw new IOException("Chunk of " + id + " is incomplete, expect " + contentLength + " bytes but " + length);
+        }
+        if (StringUtils.isNotBlank(clientCrc32) && !clientCrc32.trim().equals(String.valueOf(crc32.getValue()))) {
+            throw new IOException("Chunk of " + id + "'s crc32 doesn't match");
+        }
+    }
+
+    private static File getPartFile(ClusterProperties clusterProperties, String id, int partNumber) {
+        return new File(FileService.getFullPath(clusterProperties, SESSION_DIR + File.separator + id + "." + partNumber + ".part"));
+    }
+
+    private static File getPartFile(ClusterProperties clusterProperties, String id) {
+        return new File(FileService.getFullPath(clusterProperties, SESSION_DIR + File.separator + id + ".part"));
+    }
+
+    private static File getSessionFile(ClusterProperties clusterProperties, String id) {
+        return new File(FileService.getFullPath(clusterProperties, SESSION_DIR + File.separator + id + ".json"));
+    }
+
+    private static void save(ClusterProperties clusterProperties, UploadSession uploadSession) throws IOException {
+        File sessionFile = getSessionFile(clusterProperties, uploadSession.getId());
+        File tmpFile = new File(sessionFile.getPath() + ".tmp");
+        FileUtils.writeStringToFile(tmpFile, JsonUtil.toJson(uploadSession, false), StandardCharsets.UTF_8);
+        Files.move(tmpFile.toPath(), sessionFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static UploadSession load(ClusterProperties clusterProperties, String id) {
+        File sessionFile = getSessionFile(clusterProperties, id);
+        if (!sessionFile.exists())
+            return null;
+        try {
+            return (UploadSession) JsonUtil.fromJson(FileUtils.readFileToString(sessionFile, StandardCharsets.UTF_8), UploadSession.class);
+        } catch (IOException e) {
+            logger.warn("Failed to load upload session {}", id, e);
+            return null;
+        }
+    }
+
+    private static void remove(ClusterProperties clusterProperties, UploadSession uploadSession) {
+        for (Integer partNumber : uploadSession.getParts().keySet()) {
+            FileUtils.deleteQuietly(getPartFile(clusterProperties, uploadSession.getId(), partNumber));
+        }
+        FileUtils.deleteQuietly(getSessionFile(clusterProperties, uploadSession.getId()));
+        sessions.remove(uploadSession.getId());
+        FileService.runningFile.remove(uploadSession.getRelativePath());
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import info.yangguo.yfs.po.Needle;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * 小文件的追加写volume，由数据文件(id.dat)和索引文件(id.idx)组成。
+ * <p>
+ * 数据文件中每个needle的格式：magic(4)|keyLength(4)|metaLength(4)|dataLength(4)|crc32(8)|key|meta|data，
+ * dataLength为-1表示删除标记。索引文件中每条记录的格式：keyLength(4)|key|offset(8)|metaLength(4)|dataLength(4)|crc32(8)，
+ * 启动时只需要读取索引文件，索引文件落后于数据文件的部分通过扫描数据文件尾部恢复。
+ */
+public class Volume implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(Volume.class);
+    public static final int MAGIC = 0x59465331;
+    public static final int HEADER_SIZE = 24;
+    private static final int TOMBSTONE = -1;
+    @Getter
+    private final int id;
+    @Getter
+    private final File dataFile;
+    @Getter
+    private final File indexFile;
+    private final FileChannel dataChannel;
+    private final FileChannel indexChannel;
+    private volatile long size;
+    /**
+     * 已经被删除或者覆盖的字节数
+     */
+    private final AtomicLong garbage = new AtomicLong();
+    /**
+     * 引用计数，volume自身持有一个，每个进行中的读取持有一个，减到0时删除文件
+     */
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    public Volume(File dir, int id) throws IOException {
+        this.id = id;
+        this.dataFile = new File(dir, id + ".dat");
+        this.indexFile = new File(dir, id + ".idx");
+        this.dataChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.size = dataChannel.size();
+    }
+
+    /**
+     * 按写入顺序回放索引，needle为null表示该key已被删除
+     *
+     * @param consumer
+     * @throws IOException
+     */
+    public synchronized void load(BiConsumer<String, Needle> consumer) throws IOException {
+        long[] dataEnd = {0};
+        long indexEnd = readIndex((key, needle, tombstone) -> {
+            dataEnd[0] = Math.max(dataEnd[0], needle.getOffset() + needle.getTotalLength());
+            consumer.accept(key, tombstone ? null : needle);
+        });
+        //丢弃索引文件尾部不完整的记录
+        indexChannel.truncate(indexEnd);
+        indexChannel.position(indexEnd);
+        recover(dataEnd[0], consumer);
+    }
+
+    /**
+     * 获取volume中所有删除标记对应的key
+     *
+     * @return
+     * @throws IOException
+     */
+    public Set<String> getTombstones() throws IOException {
+        Set<String> tombstones = new HashSet<>();
+        readIndex((key, needle, tombstone) -> {
+            if (tombstone)
+                tombstones.add(key);
+        });
+        return tombstones;
+    }
+
+    /**
+     * 获取volume中回放之后仍然存在的key
+     *
+     * @return
+     * @throws IOException
+     */
+    public Set<String> getKeys() throws IOException {
+        Set<String> keys = new HashSet<>();
+        readIndex((key, needle, tombstone) -> {
+            if (tombstone)
+                keys.remove(key);
+            else
+                keys.add(key);
+        });
+        return keys;
+    }
+
+    /**
+     * 顺序读取索引文件
+     *
+     * @param visitor
+     * @return 最后一条完整记录的结束位置
+     * @throws IOException
+     */
+    private long readIndex(IndexVisitor visitor) throws IOException {
+        long indexEnd = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            while (true) {
+                try {
+                    byte[] keyBytes = new byte[in.readInt()];
+                    in.readFully(keyBytes);
+                    long offset = in.readLong();
+                    int metaLength = in.readInt();
+                    int dataLength = in.readInt();
+                    long crc32 = in.readLong();
+                    Needle needle = new Needle(id, offset, keyBytes.length, metaLength, Math.max(dataLength, 0), crc32);
+                    indexEnd += 4 + keyBytes.length + 24;
+                    visitor.visit(new String(keyBytes, StandardCharsets.UTF_8), needle, dataLength == TOMBSTONE);
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        return indexEnd;
+    }
+
+    /**
+     * 扫描数据文件中索引没有覆盖的部分，补齐索引
+     *
+     * @param position
+     * @param consumer
+     * @throws IOException
+     */
+    private void recover(long position, BiConsumer<String, Needle> consumer) throws IOException {
+        long dataSize = dataChannel.size();
+        while (position + HEADER_SIZE <= dataSize) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, position);
+            header.flip();
+            int magic = header.getInt();
+            int keyLength = header.getInt();
+            int metaLength = header.getInt();
+            int dataLength = header.getInt();
+            long crc32 = header.getLong();
+            long totalLength = HEADER_SIZE + keyLength + metaLength + Math.max(dataLength, 0);
+            if (magic != MAGIC || keyLength < 0 || metaLength < 0 || position + totalLength > dataSize) {
+                break;
+            }
+            ByteBuffer keyBuffer = ByteBuffer.allocate(keyLength);
+            readFully(keyBuffer, position + HEADER_SIZE);
+            String key = new String(keyBuffer.array(), StandardCharsets.UTF_8);
+            Needle needle = new Needle(id, position, keyLength, metaLength, Math.max(dataLength, 0), crc32);
+            writeIndex(keyBuffer.array(), needle, dataLength);
+            consumer.accept(key, dataLength == TOMBSTONE ? null : needle);
+            logger.info("Recover needle {} of volume {}", key, id);
+            position += totalLength;
+        }
+        if (position < dataSize) {
+            logger.warn("Truncate volume {} from {} to {}", id, dataSize, position);
+            dataChannel.truncate(position);
+        }
+        size = position;
+    }
+
+    /**
+     * 追加一个needle
+     *
+     * @param key
+     * @param meta
+     * @param data
+     * @param length
+     * @param crc32
+     * @return
+     * @throws IOException
+     */
+    public synchronized Needle append(String key, byte[] meta, byte[] data, int length, long crc32) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + meta.length + length);
+        buffer.putInt(MAGIC).putInt(keyBytes.length).putInt(meta.length).putInt(length).putLong(crc32);
+        buffer.put(keyBytes).put(meta).put(data, 0, length);
+        buffer.flip();
+        Needle needle = new Needle(id, size, keyBytes.length, meta.length, length, crc32);
+        writeFully(buffer, size);
+        size += needle.getTotalLength();
+        writeIndex(keyBytes, needle, length);
+        return needle;
+    }
+
+    /**
+     * 追加删除标记
+     *
+     * @param key
+     * @throws IOException
+     */
+    public synchronized void appendTombstone(String key) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length);
+        buffer.putInt(MAGIC).putInt(keyBytes.length).putInt(0).putInt(TOMBSTONE).putLong(0);
+        buffer.put(keyBytes);
+        buffer.flip();
+        Needle needle = new Needle(id, size, keyBytes.length, 0, 0, 0);
+        writeFully(buffer, size);
+        size += needle.getTotalLength();
+        writeIndex(keyBytes, needle, TOMBSTONE);
+        garbage.addAndGet(needle.getTotalLength());
+    }
+
+    /**
+     * 一次定位读取needle的meta和data
+     *
+     * @param needle
+     * @return meta和data连续存放的buffer
+     * @throws IOException
+     */
+    public ByteBuffer read(Needle needle) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(needle.getMetaLength() + needle.getDataLength());
+        readFully(buffer, needle.getOffset() + HEADER_SIZE + needle.getKeyLength());
+        buffer.flip();
+        return buffer;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getGarbage() {
+        return garbage.get();
+    }
+
+    public void addGarbage(long length) {
+        garbage.addAndGet(length);
+    }
+
+    public void force() throws IOException {
+        dataChannel.force(false);
+        indexChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        dataChannel.close();
+        indexChannel.close();
+    }
+
+    /**
+     * 读取之前获取引用，保证读取期间volume不会被删除
+     *
+     * @return volume已经被删除时返回false
+     */
+    public boolean retain() {
+        while (true) {
+            int count = refs.get();
+            if (count <= 0)
+                return false;
+            if (refs.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() == 0)
+            destroy();
+    }
+
+    /**
+     * 删除volume，进行中的读取完成之后才关闭并删除文件
+     */
+    public void delete() {
+        release();
+    }
+
+    private void destroy() {
+        try {
+            close();
+        } catch (IOException e) {
+            logger.warn("Close volume {} failure", id, e);
+        }
+        dataFile.delete();
+        indexFile.delete();
+    }
+
+    private void writeIndex(byte[] keyBytes, Needle needle, int dataLength) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + keyBytes.length + 24);
+        buffer.putInt(keyBytes.length).put(keyBytes).putLong(needle.getOffset()).putInt(needle.getMetaLength()).putInt(dataLength).putLong(needle.getCrc32());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            indexChannel.write(buffer);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += dataChannel.write(buffer, position);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = dataChannel.read(buffer, position);
+            if (read == -1)
+                throw new EOFException("Volume " + id + " is truncated at " + position);
+            position += read;
+        }
+    }
+
+    @FunctionalInterface
+    private interface IndexVisitor {
+        void visit(String key, Needle needle, boolean tombstone);
+    }
+}
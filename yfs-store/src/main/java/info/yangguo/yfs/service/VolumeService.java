@@ -0,0 +1,355 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import com.google.common.util.concurrent.RateLimiter;
+import info.yangguo.yfs.common.utils.JsonUtil;
+import info.yangguo.yfs.config.ClusterProperties;
+import info.yangguo.yfs.po.Needle;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * 小文件存储引擎：小文件不再单独占用一个inode，而是追加写入数据目录下.volume中的大文件，
+ * 每个文件对应一个常驻内存的needle(volume id/offset/length/crc32)，读取时只需要一次定位读。
+ * 文件的key依然是first/second/name形式的相对路径，对外的URL保持不变。
+ */
+public class VolumeService {
+    private static Logger logger = LoggerFactory.getLogger(VolumeService.class);
+    public static final String VOLUME_DIR = ".volume";
+    private static final Map<String, Needle> needles = new ConcurrentHashMap<>();
+    private static final NavigableMap<Integer, Volume> volumes = new ConcurrentSkipListMap<>();
+    private static volatile boolean initialized = false;
+    /**
+     * 已经完成压缩、等待删除的volume，只有压缩任务会访问
+     */
+    private static final List<Volume> retiredVolumes = new ArrayList<>();
+
+    /**
+     * 是否将该大小的文件存入volume
+     *
+     * @param clusterProperties
+     * @param size
+     * @return
+     */
+    public static boolean accept(ClusterProperties clusterProperties, long size) {
+        ClusterProperties.Volume volume = clusterProperties.getStore().getVolume();
+        return volume != null && volume.isEnable() && size <= volume.getSmall_file_size();
+    }
+
+    /**
+     * 写入一个小文件，key已经存在时覆盖
+     *
+     * @param clusterProperties
+     * @param key
+     * @param data
+     * @param length
+     * @param crc32
+     * @param metas             systemMetas和userMetas，和xattr一样在下载时作为header返回
+     * @param priority
+     * @throws IOException
+     */
+    public static void put(ClusterProperties clusterProperties, String key, byte[] data, int length, long crc32, Map<String, String> metas, IoScheduler.Priority priority) throws IOException {
+        init(clusterProperties);
+        byte[] meta = JsonUtil.toJson(metas, false).getBytes(StandardCharsets.UTF_8);
+        Volume volume;
+        //先拿到IO许可再加锁，排队的时候不会阻塞其他写入
+        try (IoScheduler.Permit permit = DiskService.acquire(clusterProperties, VOLUME_DIR, priority)) {
+            synchronized (VolumeService.class) {
+                volume = getWritableVolume(clusterProperties);
+                release(needles.put(key, volume.append(key, meta, data, length, crc32)));
+            }
+        }
+        //在锁外等待fsync，并发写入的fsync会被合并
+        GroupCommitService.sync(clusterProperties, volume.getDataFile().toPath(), volume.getIndexFile().toPath());
+    }
+
+    /**
+     * 读取小文件
+     *
+     * @param clusterProperties
+     * @param key
+     * @param priority
+     * @return metas和数据，不存在时返回null
+     * @throws IOException
+     */
+    public static Pair<Map<String, String>, ByteBuffer> read(ClusterProperties clusterProperties, String key, IoScheduler.Priority priority) throws IOException {
+        init(clusterProperties);
+        Pair<Needle, ByteBuffer> pair = readNeedle(clusterProperties, key, priority);
+        if (pair == null)
+            return null;
+        Needle needle = pair.getLeft();
+        ByteBuffer buffer = pair.getRight();
+        byte[] meta = new byte[needle.getMetaLength()];
+        buffer.get(meta);
+        ByteBuffer data = buffer.slice();
+        if (!checksum(needle, data)) {
+            throw new IOException("Needle[" + key + "]'s crc32 doesn't match");
+        }
+        Map<String, String> metas = (Map<String, String>) JsonUtil.fromJson(new String(meta, StandardCharsets.UTF_8), HashMap.class);
+        return new ImmutablePair<>(metas, data);
+    }
+
+    /**
+     * 删除小文件，volume中追加删除标记，空间由压缩回收
+     *
+     * @param clusterProperties
+     * @param key
+     * @throws IOException
+     */
+    public static synchronized void delete(ClusterProperties clusterProperties, String key) throws IOException {
+        init(clusterProperties);
+        Needle needle = needles.get(key);
+        if (needle != null) {
+            getWritableVolume(clusterProperties).appendTombstone(key);
+            release(needles.remove(key));
+        }
+    }
+
+    public static boolean contains(ClusterProperties clusterProperties, String key) {
+        init(clusterProperties);
+        return needles.containsKey(key);
+    }
+
+    /**
+     * @param clusterProperties
+     * @param key
+     * @return 小文件的数据大小，不存在时返回-1
+     */
+    public static long size(ClusterProperties clusterProperties, String key) {
+        init(clusterProperties);
+        Needle needle = needles.get(key);
+        return needle == null ? -1 : needle.getDataLength();
+    }
+
+    public static Set<String> keys(ClusterProperties clusterProperties) {
+        init(clusterProperties);
+        return Collections.unmodifiableSet(needles.keySet());
+    }
+
+    /**
+     * 校验小文件的crc32
+     *
+     * @param clusterProperties
+     * @param key
+     * @return 只有crc32不一致时返回false，不存在的时候也返回true
+     * @throws IOException 排队已满、被中断或者读取失败，这时无法判断needle是否损坏
+     */
+    public static boolean verify(ClusterProperties clusterProperties, String key) throws IOException {
+        init(clusterProperties);
+        Pair<Needle, ByteBuffer> pair = readNeedle(clusterProperties, key, IoScheduler.Priority.SCRUB);
+        if (pair == null)
+            return true;
+        Needle needle = pair.getLeft();
+        ByteBuffer buffer = pair.getRight();
+        buffer.position(buffer.position() + needle.getMetaLength());
+        if (!checksum(needle, buffer.slice())) {
+            logger.warn("Needle {}'s crc32 doesn't match", key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 读取needle的meta和data，读取期间持有volume的引用，压缩之后的volume在进行中的读取完成之后才删除
+     *
+     * @return 不存在时返回null
+     */
+    private static Pair<Needle, ByteBuffer> readNeedle(ClusterProperties clusterProperties, String key, IoScheduler.Priority priority) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            Needle needle = needles.get(key);
+            if (needle == null)
+                return null;
+            Volume volume = volumes.get(needle.getVolumeId());
+            //volume已经被删除时needle已经搬迁到新的volume，重新获取
+            if (volume == null || !volume.retain())
+                continue;
+            try (IoScheduler.Permit permit = DiskService.acquire(clusterProperties, VOLUME_DIR, priority)) {
+                return new ImmutablePair<>(needle, volume.read(needle));
+            } finally {
+                volume.release();
+            }
+        }
+        throw new IOException("Needle[" + key + "] is being compacted");
+    }
+
+    private static boolean checksum(Needle needle, ByteBuffer data) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        return crc32.getValue() == needle.getCrc32();
+    }
+
+    /**
+     * 压缩垃圾比例超过阈值的volume：存活的needle按照限速逐个追加到当前可写的volume，并通过CAS替换内存中的needle，
+     * 读请求全程不需要加锁。压缩完成的volume在下一次压缩时才删除，保证已经拿到旧needle的读请求能够完成。
+     *
+     * @param clusterProperties
+     * @throws IOException
+     */
+    public static void compact(ClusterProperties clusterProperties) throws IOException {
+        ClusterProperties.Volume config = clusterProperties.getStore().getVolume();
+        if (config == null)
+            return;
+        init(clusterProperties);
+        for (Volume volume : retiredVolumes) {
+            volumes.remove(volume.getId());
+            volume.delete();
+            logger.info("Delete compacted volume {}", volume.getId());
+        }
+        retiredVolumes.clear();
+
+        RateLimiter rateLimiter = RateLimiter.create(config.getCompact_rate());
+        for (Volume volume : new ArrayList<>(volumes.values())) {
+            if (volume == volumes.lastEntry().getValue()
+                    || volume.getSize() == 0
+                    || (double) volume.getGarbage() / volume.getSize() < config.getCompact_ratio()) {
+                continue;
+            }
+            logger.info("Compact volume {}, size:{}, garbage:{}", volume.getId(), volume.getSize(), volume.getGarbage());
+            //更早的volume中还有同一个key的旧数据时，删除标记需要保留下来，否则重启之后旧数据会复活；
+            //没有旧数据的删除标记直接丢弃，不会一直搬迁下去
+            Set<String> shadowed = new HashSet<>();
+            for (Volume older : volumes.headMap(volume.getId()).values()) {
+                shadowed.removeAll(older.getTombstones());
+                shadowed.addAll(older.getKeys());
+            }
+            for (String key : volume.getTombstones()) {
+                if (!shadowed.contains(key))
+                    continue;
+                synchronized (VolumeService.class) {
+                    if (!needles.containsKey(key))
+                        getWritableVolume(clusterProperties).appendTombstone(key);
+                }
+            }
+            for (Map.Entry<String, Needle> entry : needles.entrySet()) {
+                String key = entry.getKey();
+                Needle needle = entry.getValue();
+                if (needle.getVolumeId() != volume.getId())
+                    continue;
+                rateLimiter.acquire((int) needle.getTotalLength());
+                ByteBuffer buffer;
+                try (IoScheduler.Permit permit = DiskService.acquire(clusterProperties, VOLUME_DIR, IoScheduler.Priority.SCRUB)) {
+                    buffer = volume.read(needle);
+                }
+                byte[] meta = new byte[needle.getMetaLength()];
+                byte[] data = new byte[needle.getDataLength()];
+                buffer.get(meta).get(data);
+                CRC32 crc32 = new CRC32();
+                crc32.update(data);
+                synchronized (VolumeService.class) {
+                    if (crc32.getValue() != needle.getCrc32()) {
+                        //损坏的数据不再搬迁，由watchdog从其他节点重新同步。同delete一样追加删除标记，
+                        //否则该volume删除之后，重启时更早的volume中同一个key的旧数据会复活
+                        logger.warn("Needle[{}]'s crc32 doesn't match, drop it", key);
+                        if (needles.remove(key, needle))
+                            getWritableVolume(clusterProperties).appendTombstone(key);
+                    } else if (needles.get(key) == needle) {
+                        Needle moved = getWritableVolume(clusterProperties).append(key, meta, data, data.length, needle.getCrc32());
+                        needles.replace(key, needle, moved);
+                    }
+                }
+            }
+            retiredVolumes.add(volume);
+            logger.info("Success to compact volume {}", volume.getId());
+        }
+    }
+
+    /**
+     * 加载所有volume，按照volume id从小到大回放，后写入的needle覆盖先写入的。
+     *
+     * @param clusterProperties
+     */
+    private static void init(ClusterProperties clusterProperties) {
+        if (initialized)
+            return;
+        synchronized (VolumeService.class) {
+            if (initialized)
+                return;
+            File dir = getVolumeDir(clusterProperties);
+            File[] files = dir.listFiles((d, name) -> name.endsWith(".dat"));
+            if (files != null) {
+                BiConsumer<String, Needle> consumer = (key, needle) -> release(needle == null ? needles.remove(key) : needles.put(key, needle));
+                Arrays.stream(files)
+                        .map(file -> Integer.valueOf(file.getName().substring(0, file.getName().length() - ".dat".length())))
+                        .sorted()
+                        .forEach(id -> {
+                            try {
+                                Volume volume = new Volume(dir, id);
+                                volumes.put(id, volume);
+                                volume.load(consumer);
+                                logger.info("Success to load volume {}, size:{}, garbage:{}", id, volume.getSize(), volume.getGarbage());
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+            }
+            initialized = true;
+        }
+    }
+
+    /**
+     * 获取当前可写的volume，写满之后创建新的volume
+     *
+     * @param clusterProperties
+     * @return
+     * @throws IOException
+     */
+    private static Volume getWritableVolume(ClusterProperties clusterProperties) throws IOException {
+        Map.Entry<Integer, Volume> last = volumes.lastEntry();
+        ClusterProperties.Volume config = clusterProperties.getStore().getVolume();
+        if (last == null || (config != null && last.getValue().getSize() >= config.getMax_size())) {
+            int id = last == null ? 0 : last.getKey() + 1;
+            File dir = getVolumeDir(clusterProperties);
+            FileUtils.forceMkdir(dir);
+            Volume volume = new Volume(dir, id);
+            volumes.put(id, volume);
+            logger.info("Create volume {}", id);
+            return volume;
+        }
+        return last.getValue();
+    }
+
+    /**
+     * 被覆盖或者删除的needle计入所在volume的垃圾
+     *
+     * @param needle
+     */
+    private static void release(Needle needle) {
+        if (needle != null) {
+            Volume volume = volumes.get(needle.getVolumeId());
+            if (volume != null)
+                volume.addGarbage(needle.getTotalLength());
+        }
+    }
+
+    private static File getVolumeDir(ClusterProperties clusterProperties) {
+        return new File(FileService.getFullPath(clusterProperties, VOLUME_DIR));
+    }
+}
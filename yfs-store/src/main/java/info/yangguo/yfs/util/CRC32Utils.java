@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.util;
+
+/**
+ * crc32相关的工具方法
+ */
+public class CRC32Utils {
+    private static final int GF2_DIM = 32;
+
+    /**
+     * 合并两段数据的crc32，即已知crc(A)、crc(B)以及B的长度，计算crc(AB)，不需要重新读取数据。
+     * 算法移植自zlib的crc32_combine。
+     *
+     * @param crc1 第一段数据的crc32
+     * @param crc2 第二段数据的crc32
+     * @param len2 第二段数据的长度
+     * @return
+     */
+    public static long combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0)
+            return crc1;
+        long[] even = new long[GF2_DIM];
+        long[] odd = new long[GF2_DIM];
+
+        //odd为一个零bit对应的运算矩阵
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < GF2_DIM; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        //even为两个零bit对应的运算矩阵
+        gf2MatrixSquare(even, odd);
+        //odd为四个零bit对应的运算矩阵
+        gf2MatrixSquare(odd, even);
+
+        //在crc1后面追加len2个零字节，第一次平方之后就是一个零字节(8bit)
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0)
+                crc1 = gf2MatrixTimes(even, crc1);
+            len2 >>= 1;
+            if (len2 == 0)
+                break;
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0)
+                crc1 = gf2MatrixTimes(odd, crc1);
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        int i = 0;
+        while (vec != 0) {
+            if ((vec & 1) != 0)
+                sum ^= mat[i];
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (int n = 0; n < GF2_DIM; n++)
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.util;
+
+/**
+ * GF(2^8)上的Reed-Solomon纠删码，k个数据块加m个校验块，任意k块都可以恢复全部数据。
+ * 编码矩阵由范德蒙矩阵变换而来，前k行是单位矩阵，即数据块原样保存(systematic)。
+ */
+public class ReedSolomon {
+    //本原多项式x^8+x^4+x^3+x^2+1
+    private static final int POLYNOMIAL = 0x11d;
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+    private final int dataShards;
+    private final int parityShards;
+    /**
+     * (k+m)*k的编码矩阵
+     */
+    private final byte[][] matrix;
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256)
+                x ^= POLYNOMIAL;
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > 256)
+            throw new IllegalArgumentException("Invalid shards " + dataShards + "+" + parityShards);
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        int total = dataShards + parityShards;
+        byte[][] vandermonde = new byte[total][dataShards];
+        for (int r = 0; r < total; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                vandermonde[r][c] = power(r, c);
+            }
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = times(vandermonde, invert(top));
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    /**
+     * 根据前k块计算校验块
+     *
+     * @param shards 长度为k+m，校验块的内容会被覆盖
+     * @param offset
+     * @param length
+     */
+    public void encode(byte[][] shards, int offset, int length) {
+        for (int p = 0; p < parityShards; p++) {
+            mix(matrix[dataShards + p], shards, shards[dataShards + p], offset, length);
+        }
+    }
+
+    /**
+     * 根据任意k个完好的块恢复其余的块
+     *
+     * @param shards  长度为k+m，缺失块的内容会被覆盖
+     * @param present 每一块是否完好
+     * @param offset
+     * @param length
+     */
+    public void decode(byte[][] shards, boolean[] present, int offset, int length) {
+        int[] rows = new int[dataShards];
+        int count = 0;
+        for (int i = 0; i < present.length && count < dataShards; i++) {
+            if (present[i])
+                rows[count++] = i;
+        }
+        if (count < dataShards)
+            throw new IllegalArgumentException("Not enough shards, need " + dataShards + " but " + count);
+        byte[][] sub = new byte[dataShards][];
+        byte[][] inputs = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            sub[i] = matrix[rows[i]];
+            inputs[i] = shards[rows[i]];
+        }
+        //先恢复缺失的数据块，再由完整的数据块计算缺失的校验块
+        byte[][] inverse = invert(sub);
+        for (int d = 0; d < dataShards; d++) {
+            if (!present[d])
+                mix(inverse[d], inputs, shards[d], offset, length);
+        }
+        for (int p = dataShards; p < dataShards + parityShards; p++) {
+            if (!present[p])
+                mix(matrix[p], shards, shards[p], offset, length);
+        }
+    }
+
+    /**
+     * output = sum(coefficients[i] * inputs[i])
+     */
+    private static void mix(byte[] coefficients, byte[][] inputs, byte[] output, int offset, int length) {
+        for (int j = offset; j < offset + length; j++) {
+            output[j] = 0;
+        }
+        for (int i = 0; i < coefficients.length; i++) {
+            int c = coefficients[i] & 0xff;
+            if (c == 0)
+                continue;
+            int logC = LOG[c];
+            byte[] input = inputs[i];
+            for (int j = offset; j < offset + length; j++) {
+                int v = input[j] & 0xff;
+                if (v != 0)
+                    output[j] ^= EXP[logC + LOG[v]];
+            }
+        }
+    }
+
+    private static byte multiply(byte a, byte b) {
+        if (a == 0 || b == 0)
+            return 0;
+        return EXP[LOG[a & 0xff] + LOG[b & 0xff]];
+    }
+
+    private static byte power(int a, int n) {
+        if (n == 0)
+            return 1;
+        if (a == 0)
+            return 0;
+        return EXP[(LOG[a] * n) % 255];
+    }
+
+    private static byte inverse(byte a) {
+        return EXP[255 - LOG[a & 0xff]];
+    }
+
+    private static byte[][] times(byte[][] a, byte[][] b) {
+        byte[][] result = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                byte value = 0;
+                for (int i = 0; i < b.length; i++) {
+                    value ^= multiply(a[r][i], b[i][c]);
+                }
+                result[r][c] = value;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 高斯-约旦消元求逆矩阵
+     */
+    private static byte[][] invert(byte[][] m) {
+        int n = m.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(m[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+        for (int c = 0; c < n; c++) {
+            int pivot = c;
+            while (pivot < n && work[pivot][c] == 0)
+                pivot++;
+            if (pivot == n)
+                throw new IllegalArgumentException("Matrix is singular");
+            byte[] tmp = work[c];
+            work[c] = work[pivot];
+            work[pivot] = tmp;
+            byte scale = inverse(work[c][c]);
+            for (int i = 0; i < 2 * n; i++) {
+                work[c][i] = multiply(work[c][i], scale);
+            }
+            for (int r = 0; r < n; r++) {
+                if (r != c && work[r][c] != 0) {
+                    byte factor = work[r][c];
+                    for (int i = 0; i < 2 * n; i++) {
+                        work[r][i] ^= multiply(factor, work[c][i]);
+                    }
+                }
+            }
+        }
+        byte[][] result = new byte[n][n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(work[r], n, result[r], 0, n);
+        }
+        return result;
+    }
+}
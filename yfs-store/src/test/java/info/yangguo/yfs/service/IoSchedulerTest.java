@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class IoSchedulerTest {
+    @Test(timeout = 10000)
+    public void unlimited() throws IOException {
+        IoScheduler scheduler = new IoScheduler(0, 0);
+        try (IoScheduler.Permit first = scheduler.acquire(IoScheduler.Priority.SCRUB);
+             IoScheduler.Permit second = scheduler.acquire(IoScheduler.Priority.SCRUB)) {
+            Assert.assertArrayEquals(new int[4], scheduler.getWaiters());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void priority() throws Exception {
+        IoScheduler scheduler = new IoScheduler(1, 10);
+        List<IoScheduler.Priority> granted = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        IoScheduler.Permit permit = scheduler.acquire(IoScheduler.Priority.USER_WRITE);
+        //低优先级先排队，许可释放时仍然先给高优先级
+        for (IoScheduler.Priority priority : new IoScheduler.Priority[]{IoScheduler.Priority.SCRUB, IoScheduler.Priority.REPLICATION, IoScheduler.Priority.USER_READ}) {
+            threads.add(start(scheduler, priority, granted, null));
+            awaitWaiters(scheduler, priority, 1);
+        }
+        permit.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(Arrays.asList(IoScheduler.Priority.USER_READ, IoScheduler.Priority.REPLICATION, IoScheduler.Priority.SCRUB), granted);
+        //重复close不会多释放许可
+        permit.close();
+        try (IoScheduler.Permit first = scheduler.acquire(IoScheduler.Priority.SCRUB)) {
+            Thread thread = start(scheduler, IoScheduler.Priority.SCRUB, granted, null);
+            awaitWaiters(scheduler, IoScheduler.Priority.SCRUB, 1);
+            first.close();
+            thread.join();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void queueLimit() throws Exception {
+        IoScheduler scheduler = new IoScheduler(1, 1);
+        List<IoScheduler.Priority> granted = Collections.synchronizedList(new ArrayList<>());
+        IoScheduler.Permit permit = scheduler.acquire(IoScheduler.Priority.USER_READ);
+        Thread replication = start(scheduler, IoScheduler.Priority.REPLICATION, granted, null);
+        awaitWaiters(scheduler, IoScheduler.Priority.REPLICATION, 1);
+        try {
+            scheduler.acquire(IoScheduler.Priority.REPLICATION);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("Too many pending"));
+        }
+        //队列长度按照优先级分别限制
+        Thread read = start(scheduler, IoScheduler.Priority.USER_READ, granted, null);
+        awaitWaiters(scheduler, IoScheduler.Priority.USER_READ, 1);
+        permit.close();
+        replication.join();
+        read.join();
+        Assert.assertEquals(Arrays.asList(IoScheduler.Priority.USER_READ, IoScheduler.Priority.REPLICATION), granted);
+    }
+
+    @Test(timeout = 10000)
+    public void interrupt() throws Exception {
+        IoScheduler scheduler = new IoScheduler(1, 1);
+        List<IoScheduler.Priority> granted = Collections.synchronizedList(new ArrayList<>());
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        IoScheduler.Permit permit = scheduler.acquire(IoScheduler.Priority.USER_READ);
+        Thread thread = start(scheduler, IoScheduler.Priority.SCRUB, granted, failure);
+        awaitWaiters(scheduler, IoScheduler.Priority.SCRUB, 1);
+        thread.interrupt();
+        thread.join();
+        Assert.assertTrue(failure.get() instanceof InterruptedIOException);
+        //被中断的请求离开队列，不会占用许可
+        Assert.assertArrayEquals(new int[4], scheduler.getWaiters());
+        permit.close();
+        try (IoScheduler.Permit next = scheduler.acquire(IoScheduler.Priority.SCRUB)) {
+            Assert.assertTrue(granted.isEmpty());
+        }
+    }
+
+    private static Thread start(IoScheduler scheduler, IoScheduler.Priority priority, List<IoScheduler.Priority> granted, AtomicReference<IOException> failure) {
+        Thread thread = new Thread(() -> {
+            try (IoScheduler.Permit permit = scheduler.acquire(priority)) {
+                granted.add(priority);
+            } catch (IOException e) {
+                if (failure != null)
+                    failure.set(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitWaiters(IoScheduler scheduler, IoScheduler.Priority priority, int expect) throws InterruptedException {
+        while (scheduler.getWaiters()[priority.ordinal()] != expect) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import com.google.common.collect.Sets;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class ReplicationJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replay() throws IOException {
+        File file = new File(folder.getRoot(), "replication.journal");
+        ReplicationJournal journal = new ReplicationJournal(file, new LinkedHashSet<>());
+        journal.add("1/1/a");
+        journal.add("1/1/b");
+        journal.add("1/1/c");
+        journal.remove("1/1/b", Collections::emptySet);
+        Set<String> pending = new LinkedHashSet<>();
+        new ReplicationJournal(file, pending);
+        Assert.assertEquals(Sets.newHashSet("1/1/a", "1/1/c"), pending);
+        //打开时只保留未完成的记录
+        Assert.assertEquals("+1/1/a\n+1/1/c\n", read(file));
+    }
+
+    @Test
+    public void truncatedTail() throws IOException {
+        File file = new File(folder.getRoot(), "replication.journal");
+        ReplicationJournal journal = new ReplicationJournal(file, new LinkedHashSet<>());
+        journal.add("1/1/a");
+        journal.add("1/1/b");
+        //写入"-1/1/a"的过程中进程退出
+        Files.write(file.toPath(), "-".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        Set<String> pending = new LinkedHashSet<>();
+        journal = new ReplicationJournal(file, pending);
+        Assert.assertEquals(Sets.newHashSet("1/1/a", "1/1/b"), pending);
+        //之后的记录不能和不完整的行拼在一起
+        journal.add("1/1/c");
+        pending = new LinkedHashSet<>();
+        new ReplicationJournal(file, pending);
+        Assert.assertEquals(Sets.newHashSet("1/1/a", "1/1/b", "1/1/c"), pending);
+    }
+
+    @Test
+    public void rewrite() throws IOException {
+        File file = new File(folder.getRoot(), "replication.journal");
+        ReplicationJournal journal = new ReplicationJournal(file, new LinkedHashSet<>());
+        Set<String> live = Sets.newHashSet("1/1/live");
+        journal.add("1/1/live");
+        for (int i = 0; i < 20000; i++) {
+            journal.add("2/2/" + i);
+            journal.remove("2/2/" + i, () -> live);
+        }
+        //已完成的记录远多于未完成的记录时重写
+        Assert.assertTrue(Files.readAllLines(file.toPath()).size() <= 12000);
+        Set<String> pending = new LinkedHashSet<>();
+        new ReplicationJournal(file, pending);
+        Assert.assertEquals(live, pending);
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
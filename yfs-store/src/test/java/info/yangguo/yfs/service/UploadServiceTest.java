@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import info.yangguo.yfs.common.CommonConstant;
+import info.yangguo.yfs.config.ClusterProperties;
+import info.yangguo.yfs.po.UploadSession;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+
+public class UploadServiceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private ClusterProperties clusterProperties;
+
+    @Before
+    public void setUp() {
+        ClusterProperties.Filedata filedata = new ClusterProperties.Filedata();
+        filedata.setDir(folder.getRoot().getPath());
+        filedata.setPartition(4);
+        ClusterProperties.Store store = new ClusterProperties.Store();
+        store.setFiledata(filedata);
+        store.setMax_upload_size(-1);
+        clusterProperties = new ClusterProperties();
+        clusterProperties.setGroup("01");
+        clusterProperties.setLocal("1");
+        clusterProperties.setStore(store);
+    }
+
+    @Test
+    public void compose() throws IOException {
+        String id = create(-1);
+        appendPart(id, 2, "world");
+        appendPart(id, 1, "hello ");
+        assertCommitted(id, "hello world");
+    }
+
+    @Test
+    public void missingPart() throws IOException {
+        String id = create(-1);
+        appendPart(id, 1, "hello ");
+        appendPart(id, 3, "d");
+        try {
+            UploadService.commit(clusterProperties, id);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("missing part 2"));
+        }
+        //commit失败之后会话保持原样，补传分片之后可以再次commit
+        Assert.assertEquals(2, UploadService.get(clusterProperties, id).getParts().size());
+        appendPart(id, 2, "worl");
+        assertCommitted(id, "hello world");
+    }
+
+    @Test
+    public void sizeMismatch() throws IOException {
+        String id = create(11);
+        appendPart(id, 1, "hello ");
+        appendPart(id, 2, "wor");
+        try {
+            UploadService.commit(clusterProperties, id);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("incomplete"));
+        }
+        UploadSession uploadSession = UploadService.get(clusterProperties, id);
+        Assert.assertEquals(2, uploadSession.getParts().size());
+        Assert.assertEquals(0, uploadSession.getOffset());
+        appendPart(id, 2, "world");
+        assertCommitted(id, "hello world");
+    }
+
+    @Test
+    public void mixedMode() throws IOException {
+        String id = create(-1);
+        UploadService.append(clusterProperties, id, 0, stream("hello "), 6, null);
+        try {
+            appendPart(id, 2, "world");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("in chunks"));
+        }
+        UploadService.append(clusterProperties, id, 6, stream("world"), 5, null);
+        assertCommitted(id, "hello world");
+    }
+
+    private String create(long size) throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/upload");
+        request.addHeader(CommonConstant.xFileNameHeader, "a.txt");
+        return UploadService.create(clusterProperties, size, request).getId();
+    }
+
+    private void appendPart(String id, int partNumber, String data) throws IOException {
+        UploadService.appendPart(clusterProperties, id, partNumber, stream(data), data.length(), null);
+    }
+
+    private void assertCommitted(String id, String expect) throws IOException {
+        String relativePath = UploadService.commit(clusterProperties, id).getKey();
+        String fullPath = FileService.getFullPath(clusterProperties, relativePath);
+        Assert.assertEquals(expect, new String(Files.readAllBytes(Paths.get(fullPath)), StandardCharsets.UTF_8));
+        CRC32 crc32 = new CRC32();
+        crc32.update(expect.getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(String.valueOf(crc32.getValue()), FileAttributes.getXattr(CommonConstant.CRC32, fullPath));
+        Assert.assertNull(UploadService.get(clusterProperties, id));
+    }
+
+    private static ByteArrayInputStream stream(String data) {
+        return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.service;
+
+import com.google.common.collect.Sets;
+import info.yangguo.yfs.po.Needle;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class VolumeTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void load() throws IOException {
+        File dir = folder.getRoot();
+        try (Volume volume = new Volume(dir, 0)) {
+            append(volume, "a", "aaa");
+            append(volume, "b", "bbbb");
+            volume.appendTombstone("a");
+        }
+        try (Volume volume = new Volume(dir, 0)) {
+            Map<String, Needle> needles = load(volume);
+            Assert.assertEquals(Sets.newHashSet("b"), needles.keySet());
+            Assert.assertEquals("meta-bbbb", read(volume, needles.get("b")));
+            Assert.assertEquals(Sets.newHashSet("a"), volume.getTombstones());
+            Assert.assertEquals(Sets.newHashSet("b"), volume.getKeys());
+        }
+    }
+
+    @Test
+    public void recoverIndex() throws IOException {
+        File dir = folder.getRoot();
+        try (Volume volume = new Volume(dir, 0)) {
+            append(volume, "a", "aaa");
+            append(volume, "b", "bbbb");
+            volume.appendTombstone("a");
+        }
+        //数据已经写入但是只有第一条索引落盘
+        long indexLength = new File(dir, "0.idx").length();
+        truncate(new File(dir, "0.idx"), indexRecordLength("a"));
+        try (Volume volume = new Volume(dir, 0)) {
+            Map<String, Needle> needles = load(volume);
+            Assert.assertEquals(Sets.newHashSet("b"), needles.keySet());
+            Assert.assertEquals("meta-bbbb", read(volume, needles.get("b")));
+            //数据文件尾部的删除标记也要恢复到索引中
+            Assert.assertEquals(Sets.newHashSet("a"), volume.getTombstones());
+        }
+        Assert.assertEquals(indexLength, new File(dir, "0.idx").length());
+    }
+
+    @Test
+    public void truncatedTail() throws IOException {
+        File dir = folder.getRoot();
+        long dataEnd;
+        try (Volume volume = new Volume(dir, 0)) {
+            append(volume, "a", "aaa");
+            dataEnd = volume.getSize();
+            append(volume, "b", "bbbb");
+        }
+        //写入b的过程中崩溃，数据和索引的尾部都不完整
+        truncate(new File(dir, "0.dat"), dataEnd + Volume.HEADER_SIZE + 1);
+        truncate(new File(dir, "0.idx"), indexRecordLength("a") + 3);
+        try (Volume volume = new Volume(dir, 0)) {
+            Map<String, Needle> needles = load(volume);
+            Assert.assertEquals(Sets.newHashSet("a"), needles.keySet());
+            Assert.assertEquals(dataEnd, volume.getSize());
+            append(volume, "c", "cc");
+        }
+        Assert.assertEquals(indexRecordLength("a") + indexRecordLength("c"), new File(dir, "0.idx").length());
+        try (Volume volume = new Volume(dir, 0)) {
+            Map<String, Needle> needles = load(volume);
+            Assert.assertEquals(Sets.newHashSet("a", "c"), needles.keySet());
+            Assert.assertEquals("meta-aaa", read(volume, needles.get("a")));
+            Assert.assertEquals("meta-cc", read(volume, needles.get("c")));
+        }
+    }
+
+    @Test
+    public void corruptedTail() throws IOException {
+        File dir = folder.getRoot();
+        long dataEnd;
+        try (Volume volume = new Volume(dir, 0)) {
+            append(volume, "a", "aaa");
+            dataEnd = volume.getSize();
+            append(volume, "b", "bbbb");
+        }
+        //索引没有覆盖的尾部magic不正确时丢弃
+        truncate(new File(dir, "0.idx"), indexRecordLength("a"));
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "0.dat"), "rw")) {
+            file.seek(dataEnd);
+            file.writeInt(0);
+        }
+        try (Volume volume = new Volume(dir, 0)) {
+            Assert.assertEquals(Sets.newHashSet("a"), load(volume).keySet());
+        }
+        Assert.assertEquals(dataEnd, new File(dir, "0.dat").length());
+    }
+
+    @Test
+    public void refs() throws IOException {
+        File dir = folder.getRoot();
+        Volume volume = new Volume(dir, 0);
+        append(volume, "a", "aaa");
+        Assert.assertTrue(volume.retain());
+        volume.delete();
+        //进行中的读取完成之前文件不能被删除
+        Assert.assertTrue(new File(dir, "0.dat").exists());
+        Assert.assertEquals("meta-aaa", read(volume, load(volume).get("a")));
+        volume.release();
+        Assert.assertFalse(new File(dir, "0.dat").exists());
+        Assert.assertFalse(new File(dir, "0.idx").exists());
+        Assert.assertFalse(volume.retain());
+    }
+
+    private static void append(Volume volume, String key, String data) throws IOException {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        volume.append(key, "meta-".getBytes(StandardCharsets.UTF_8), bytes, bytes.length, 0);
+    }
+
+    private static Map<String, Needle> load(Volume volume) throws IOException {
+        Map<String, Needle> needles = new LinkedHashMap<>();
+        volume.load((key, needle) -> {
+            if (needle == null)
+                needles.remove(key);
+            else
+                needles.put(key, needle);
+        });
+        return needles;
+    }
+
+    private static String read(Volume volume, Needle needle) throws IOException {
+        ByteBuffer buffer = volume.read(needle);
+        return new String(buffer.array(), buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+    }
+
+    private static long indexRecordLength(String key) {
+        return 4 + key.getBytes(StandardCharsets.UTF_8).length + 24;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(length);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+public class CRC32UtilsTest {
+    @Test
+    public void combine() {
+        byte[] data = new byte[100000];
+        new Random().nextBytes(data);
+        CRC32 all = new CRC32();
+        all.update(data);
+        for (int split : new int[]{0, 1, 4096, 65537, data.length}) {
+            CRC32 first = new CRC32();
+            first.update(data, 0, split);
+            CRC32 second = new CRC32();
+            second.update(data, split, data.length - split);
+            Assert.assertEquals(all.getValue(), CRC32Utils.combine(first.getValue(), second.getValue(), data.length - split));
+        }
+    }
+}
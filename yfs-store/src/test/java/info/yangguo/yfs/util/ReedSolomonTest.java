@@ -0,0 +1,49 @@
+/*
+ * Copyright 2018-present yangguo@outlook.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.yangguo.yfs.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class ReedSolomonTest {
+    @Test
+    public void decode() {
+        ReedSolomon reedSolomon = new ReedSolomon(4, 2);
+        Random random = new Random();
+        byte[][] shards = new byte[6][1000];
+        for (int i = 0; i < 4; i++) {
+            random.nextBytes(shards[i]);
+        }
+        reedSolomon.encode(shards, 0, 1000);
+        //丢失任意两块都可以恢复
+        for (int a = 0; a < 6; a++) {
+            for (int b = a + 1; b < 6; b++) {
+                byte[][] copy = new byte[6][];
+                boolean[] present = new boolean[6];
+                for (int i = 0; i < 6; i++) {
+                    copy[i] = (i == a || i == b) ? new byte[1000] : shards[i].clone();
+                    present[i] = i != a && i != b;
+                }
+                reedSolomon.decode(copy, present, 0, 1000);
+                for (int i = 0; i < 6; i++) {
+                    Assert.assertArrayEquals(shards[i], copy[i]);
+                }
+            }
+        }
+    }
+}